@@ -0,0 +1,252 @@
+package benchmark;
+
+import place.Place;
+import place.ServiceRegistry;
+import quadTree.QuadTree;
+import quadTree.ServicePredicate;
+import rectangle.Rectangle;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import arrayList.ArrayList;
+
+// Micro-benchmarks for the QuadTree operations across tree sizes and point distributions.
+// Every benchmark is warmed up before it is measured so JIT compilation is not timed, setup
+// (building trees, generating points) stays outside the timed region, and results are fed
+// into a sink so the JIT cannot drop the work. Output is one line per benchmark with the
+// mean and standard deviation of ns/op over the measured iterations.
+//
+// Usage: java benchmark.QuadTreeBenchmark [size ...]   (default sizes 10000 100000 1000000)
+public class QuadTreeBenchmark {
+    private static final int MAP_SIZE = 10_000_000;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    // Operations per iteration for the lookup, edit and removal benchmarks
+    private static final int SAMPLE_SIZE = 10_000;
+    private static final int QUERY_COUNT = 200;
+    private static final int QUERY_SIZE = MAP_SIZE / 100; // Each query covers 0.01% of the map
+    private static final int CLUSTERS = 20;
+    private static final int CLUSTER_RADIUS = MAP_SIZE / 200;
+    private static final int DUPLICATE_FACTOR = 16; // Average number of places per coordinate
+    private static final String[] DISTRIBUTIONS = {"uniform", "clustered", "duplicates"};
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    // Results are accumulated here so the measured work is never dead code
+    private static volatile long sink;
+
+    // Creates the state one iteration works on; not timed
+    private interface Setup {
+        Object create();
+    }
+
+    // The timed part of an iteration; returns the number of operations it performed
+    private interface Body {
+        int run(Object state);
+    }
+
+    // Points generated for one size and distribution, with samples for lookups and queries
+    private static final class Dataset {
+        final int[] xs;
+        final int[] ys;
+        final long[] serviceBitmasks;
+        final int[] sample; // Indices of existing points
+        final Rectangle[] queries;
+
+        Dataset(int size, String distribution, long seed) {
+            Random random = new Random(seed);
+            xs = new int[size];
+            ys = new int[size];
+            serviceBitmasks = new long[size];
+            int[] centers = new int[CLUSTERS * 2];
+            for (int i = 0; i < centers.length; i++) {
+                centers[i] = CLUSTER_RADIUS + random.nextInt(MAP_SIZE - 2 * CLUSTER_RADIUS);
+            }
+            int distinct = Math.max(1, size / DUPLICATE_FACTOR);
+            for (int i = 0; i < size; i++) {
+                if (distribution.equals("clustered")) {
+                    int cluster = random.nextInt(CLUSTERS);
+                    xs[i] = centers[2 * cluster] + (int) (random.nextGaussian() * CLUSTER_RADIUS / 3);
+                    ys[i] = centers[2 * cluster + 1] + (int) (random.nextGaussian() * CLUSTER_RADIUS / 3);
+                    xs[i] = Math.max(0, Math.min(MAP_SIZE - 1, xs[i]));
+                    ys[i] = Math.max(0, Math.min(MAP_SIZE - 1, ys[i]));
+                } else if (distribution.equals("duplicates") && i >= distinct) {
+                    int original = random.nextInt(distinct);
+                    xs[i] = xs[original];
+                    ys[i] = ys[original];
+                } else {
+                    xs[i] = random.nextInt(MAP_SIZE);
+                    ys[i] = random.nextInt(MAP_SIZE);
+                }
+                serviceBitmasks[i] = QuadTree.generateServiceBitmask(random, ServiceRegistry.getServiceTypeCount());
+            }
+            sample = new int[Math.min(size, SAMPLE_SIZE)];
+            for (int i = 0; i < sample.length; i++) {
+                sample[i] = random.nextInt(size);
+            }
+            // Queries are centred on existing points so clustered data is actually hit
+            queries = new Rectangle[QUERY_COUNT];
+            for (int i = 0; i < queries.length; i++) {
+                int p = random.nextInt(size);
+                queries[i] = new Rectangle(Math.max(0, xs[p] - QUERY_SIZE / 2), Math.max(0, ys[p] - QUERY_SIZE / 2),
+                        QUERY_SIZE, QUERY_SIZE);
+            }
+        }
+
+        QuadTree build(boolean pointIndex) {
+            QuadTree tree = new QuadTree(new Rectangle(0, 0, MAP_SIZE, MAP_SIZE), 0);
+            // insertBatch reorders its arrays, so it works on copies
+            tree.insertBatch(xs.clone(), ys.clone(), serviceBitmasks.clone(), xs.length);
+            if (pointIndex) {
+                tree.enablePointIndex();
+            }
+            return tree;
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {10_000, 100_000, 1_000_000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%-24s %-11s %10s %14s %12s%n", "benchmark", "points", "size", "ns/op", "+/-");
+        for (int size : sizes) {
+            for (String distribution : DISTRIBUTIONS) {
+                runAll(new Dataset(size, distribution, size * 31L + distribution.hashCode()), distribution, size);
+            }
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void runAll(Dataset data, String distribution, int size) {
+        QuadTree shared = data.build(false);
+        QuadTree indexed = data.build(true);
+
+        measure("insert", distribution, size, () -> {
+            Place[] places = new Place[data.xs.length];
+            for (int i = 0; i < places.length; i++) {
+                places[i] = new Place(data.xs[i], data.ys[i], data.serviceBitmasks[i]);
+            }
+            return places;
+        }, state -> {
+            Place[] places = (Place[]) state;
+            QuadTree tree = new QuadTree(new Rectangle(0, 0, MAP_SIZE, MAP_SIZE), 0);
+            for (Place place : places) {
+                tree.insert(place);
+            }
+            sink += tree.size();
+            return places.length;
+        });
+
+        measure("insertBatch", distribution, size, () -> new Object[]{
+                data.xs.clone(), data.ys.clone(), data.serviceBitmasks.clone()
+        }, state -> {
+            Object[] columns = (Object[]) state;
+            int[] xs = (int[]) columns[0];
+            QuadTree tree = new QuadTree(new Rectangle(0, 0, MAP_SIZE, MAP_SIZE), 0);
+            tree.insertBatch(xs, (int[]) columns[1], (long[]) columns[2], xs.length);
+            sink += tree.size();
+            return xs.length;
+        });
+
+        measure("query", distribution, size, () -> shared, state -> query((QuadTree) state, data, null));
+        measure("query (service)", distribution, size, () -> shared, state -> query((QuadTree) state, data, 1L << 3));
+        // Places offering service 3 but not service 5, filtered inside the traversal
+        ServicePredicate predicate = new ServicePredicate(1L << 3, 0, 1L << 5);
+        measure("count (predicate)", distribution, size, () -> shared, state -> {
+            QuadTree tree = (QuadTree) state;
+            for (Rectangle area : data.queries) {
+                sink += tree.countMatching(area, predicate);
+            }
+            return data.queries.length;
+        });
+
+        measure("findPlace", distribution, size, () -> shared, state -> findPlace((QuadTree) state, data));
+        measure("findPlace (index)", distribution, size, () -> indexed, state -> findPlace((QuadTree) state, data));
+
+        // Every iteration adds a service and removes it again, leaving the tree unchanged
+        measure("editPlaceService", distribution, size, () -> indexed, state -> {
+            QuadTree tree = (QuadTree) state;
+            for (int p : data.sample) {
+                tree.editPlaceService(data.xs[p], data.ys[p], "add", "Gym");
+                tree.editPlaceService(data.xs[p], data.ys[p], "remove", "Gym");
+            }
+            return 2 * data.sample.length;
+        });
+
+        measure("removePlace", distribution, size, () -> data.build(true), state -> {
+            QuadTree tree = (QuadTree) state;
+            for (int p : data.sample) {
+                sink += tree.removePlace(data.xs[p], data.ys[p]) ? 1 : 0;
+            }
+            return data.sample.length;
+        });
+    }
+
+    private static int query(QuadTree tree, Dataset data, Long serviceBitmask) {
+        ArrayList<Place> found = new ArrayList<>();
+        for (Rectangle area : data.queries) {
+            tree.query(area, found, serviceBitmask);
+            sink += found.size();
+            found.clear();
+        }
+        return data.queries.length;
+    }
+
+    private static int findPlace(QuadTree tree, Dataset data) {
+        for (int p : data.sample) {
+            Place place = tree.findPlace(data.xs[p], data.ys[p]);
+            sink += place == null ? 0 : place.getServiceBitmask();
+        }
+        return data.sample.length;
+    }
+
+    // Run setup + body for the warm-up and measured iterations and print ns/op
+    // Console output from the tree (edit and removal messages) is discarded while timing
+    private static void measure(String name, String distribution, int size, Setup setup, Body body) {
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+                Object state = setup.create();
+                System.setOut(DISCARD);
+                System.setErr(DISCARD);
+                long start = System.nanoTime();
+                int operations = body.run(state);
+                long elapsed = System.nanoTime() - start;
+                System.setOut(out);
+                System.setErr(err);
+                if (i >= WARMUP_ITERATIONS) {
+                    nanosPerOp[i - WARMUP_ITERATIONS] = (double) elapsed / operations;
+                }
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value;
+        }
+        mean /= nanosPerOp.length;
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = Math.sqrt(variance / nanosPerOp.length);
+        System.out.printf("%-24s %-11s %10d %14.1f %12.1f%n", name, distribution, size, mean, deviation);
+    }
+}
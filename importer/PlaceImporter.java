@@ -0,0 +1,484 @@
+package importer;
+
+import place.Place;
+import place.ServiceRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Streams places from large files into a PlaceSink.
+// A parser thread reads the file through NIO buffers and fills fixed-size chunks of parallel
+// int arrays, working on the raw bytes so no String is created per row or field; the calling
+// thread hands full chunks to the sink. A bounded queue between the two lets parsing overlap
+// with insertion while keeping memory flat, and chunks are recycled instead of reallocated.
+//
+// CSV rows are "x,y,services" where services is either a numeric bitmask or service names
+// separated by ';' or '|' (optionally quoted, names matched case-insensitively through a hash
+// table); a header line is skipped. Binary files are big-endian: a header (magic, version,
+// number of long words per mask) followed by (x int, y int, mask words) records, word w holding
+// services 64w to 64w+63; words after the first reach the sink as the places' high service words
+// (see Place), allocated only for rows offering such services. Files without the header are read as the original format of (x, y,
+// serviceBitmask) int triples, whose bitmasks cover the first 32 service types.
+// Rows offering a service that is not registered are rejected like malformed ones.
+public class PlaceImporter {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int QUEUED_CHUNKS = 4;
+    private static final int READ_BUFFER_BYTES = 1 << 22;
+    private static final int BINARY_MAGIC = 0x4D32504C; // "M2PL"
+    private static final int BINARY_VERSION = 2;
+    private static final int BINARY_HEADER_BYTES = 3 * Integer.BYTES;
+    // Widest mask a binary file may declare; words past the registered services only hold zeros
+    private static final int MAX_MASK_WORDS = 64;
+    // Record size of the original headerless format: three ints
+    private static final int LEGACY_RECORD_BYTES = 3 * Integer.BYTES;
+    private static final Chunk END = new Chunk(0);
+
+    private final PlaceSink sink;
+    // Lower-case ASCII bytes of every registered service name, indexed like ServiceRegistry,
+    // and an open-addressing table from the hash of a name to its index + 1 (0 marks empty)
+    private final byte[][] serviceNames;
+    private final int[] serviceSlots;
+    private final int serviceCount; // Registered service types
+    private final long registeredServices; // Bits of the registered service types 0-63
+    private long imported;
+    private long rejected;
+
+    // Parser thread state
+    private final ArrayBlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUED_CHUNKS + 2);
+    private Chunk current;
+    private int cursor; // Position reached by the last field parsed
+    private long services; // Bitmask produced by the last services field parsed
+    private long[] highServices; // and its high service words, null when it has none
+    private volatile Throwable parseFailure;
+
+    public PlaceImporter(PlaceSink sink) {
+        this.sink = sink;
+        String[] names = ServiceRegistry.getServiceTypes();
+        this.serviceNames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = new byte[names[i].length()];
+            for (int j = 0; j < name.length; j++) {
+                name[j] = foldCase((byte) names[i].charAt(j));
+            }
+            serviceNames[i] = name;
+        }
+        this.serviceCount = names.length;
+        this.registeredServices = registeredBits(0);
+        this.serviceSlots = new int[Integer.highestOneBit(Math.max(names.length, 2) - 1) << 2];
+        for (int i = 0; i < names.length; i++) {
+            int slot = hashName(serviceNames[i], 0, serviceNames[i].length) & (serviceSlots.length - 1);
+            while (serviceSlots[slot] != 0) {
+                slot = (slot + 1) & (serviceSlots.length - 1);
+            }
+            serviceSlots[slot] = i + 1;
+        }
+    }
+
+    private static final class Chunk {
+        final int[] xs;
+        final int[] ys;
+        final long[] serviceBitmasks;
+        long[][] highServiceWords; // Allocated by the first row offering a service from 64 on
+        int length;
+
+        Chunk(int capacity) {
+            xs = new int[capacity];
+            ys = new int[capacity];
+            serviceBitmasks = new long[capacity];
+        }
+    }
+
+    // Rows handed to the sink so far
+    public long getImported() {
+        return imported;
+    }
+
+    // Malformed rows, rows offering unregistered services and a trailing partial binary
+    // record that were skipped
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long importCsv(Path path) throws IOException {
+        return run(path, true);
+    }
+
+    public long importBinary(Path path) throws IOException {
+        return run(path, false);
+    }
+
+    private long run(Path path, boolean csv) throws IOException {
+        long before = imported;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            filled.clear();
+            free.clear();
+            for (int i = 0; i < QUEUED_CHUNKS + 2; i++) {
+                free.add(new Chunk(CHUNK_SIZE));
+            }
+            parseFailure = null;
+            Thread parser = new Thread(() -> parse(channel, csv), "place-import-parser");
+            parser.setDaemon(true);
+            parser.start();
+            try {
+                while (true) {
+                    Chunk chunk = filled.take();
+                    if (chunk == END) {
+                        break;
+                    }
+                    sink.accept(chunk.xs, chunk.ys, chunk.serviceBitmasks, chunk.highServiceWords, chunk.length);
+                    imported += chunk.length;
+                    chunk.length = 0;
+                    chunk.highServiceWords = null; // The sink may keep the rows' words
+                    free.put(chunk);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import interrupted", e);
+            } finally {
+                parser.interrupt(); // Only matters when the sink failed and the parser is waiting
+                joinQuietly(parser);
+            }
+        }
+        Throwable failure = parseFailure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("Import failed", failure);
+        }
+        return imported - before;
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Parser thread body: always ends the stream with END so the consumer never waits forever
+    private void parse(FileChannel channel, boolean csv) {
+        try {
+            current = free.take();
+            if (csv) {
+                parseCsv(channel);
+            } else {
+                parseBinary(channel);
+            }
+            if (current.length > 0) {
+                filled.put(current);
+            }
+        } catch (InterruptedException e) {
+            return; // The consumer gave up
+        } catch (Throwable t) {
+            parseFailure = t;
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // The consumer gave up
+        }
+    }
+
+    private void emit(int x, int y, long serviceBitmask, long[] high) throws InterruptedException {
+        Chunk chunk = current;
+        chunk.xs[chunk.length] = x;
+        chunk.ys[chunk.length] = y;
+        chunk.serviceBitmasks[chunk.length] = serviceBitmask;
+        if (high != null) {
+            if (chunk.highServiceWords == null) {
+                chunk.highServiceWords = new long[CHUNK_SIZE][];
+            }
+            chunk.highServiceWords[chunk.length] = high;
+        }
+        if (++chunk.length == CHUNK_SIZE) {
+            filled.put(chunk);
+            current = free.take();
+        }
+    }
+
+    private void parseCsv(FileChannel channel) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        byte[] bytes = buffer.array();
+        int end = 0;
+        boolean firstRow = true;
+        boolean eof = false;
+        while (!eof) {
+            buffer.position(end);
+            if (channel.read(buffer) < 0) {
+                eof = true;
+            }
+            end = buffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    firstRow = parseCsvRow(bytes, lineStart, i, firstRow);
+                    lineStart = i + 1;
+                }
+            }
+            if (eof) {
+                if (lineStart < end) {
+                    parseCsvRow(bytes, lineStart, end, firstRow);
+                }
+                break;
+            }
+            if (lineStart == 0 && end == bytes.length) {
+                throw new IOException("CSV row longer than " + READ_BUFFER_BYTES + " bytes");
+            }
+            // Carry the unfinished row over to the front of the buffer
+            end -= lineStart;
+            System.arraycopy(bytes, lineStart, bytes, 0, end);
+        }
+    }
+
+    // Parse the row in bytes[from, to) and emit it; returns whether no row has been seen yet
+    private boolean parseCsvRow(byte[] bytes, int from, int to, boolean firstRow) throws InterruptedException {
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        if (isBlank(bytes, from, to)) {
+            return firstRow;
+        }
+        long x = parseInt(bytes, from, to);
+        if (x == Long.MIN_VALUE) {
+            if (!firstRow) {
+                rejected++; // Anything but a leading header row is malformed
+            }
+            return false;
+        }
+        long y = cursor < to && bytes[cursor] == ',' ? parseInt(bytes, cursor + 1, to) : Long.MIN_VALUE;
+        if (y == Long.MIN_VALUE || cursor >= to || bytes[cursor] != ',' || !parseServices(bytes, cursor + 1, to)) {
+            rejected++;
+            return false;
+        }
+        emit((int) x, (int) y, services, highServices);
+        return false;
+    }
+
+    private static boolean isBlank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parse an int field surrounded by optional spaces, leaving cursor on the byte after it
+    // Returns Long.MIN_VALUE when the field is not a valid int
+    private long parseInt(byte[] bytes, int from, int to) {
+        int i = skipSpaces(bytes, from, to);
+        boolean negative = i < to && bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int digitsStart = i;
+        long value = 0;
+        while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+            value = value * 10 + (bytes[i] - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+            i++;
+        }
+        if (i == digitsStart) {
+            return Long.MIN_VALUE;
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        cursor = skipSpaces(bytes, i, to);
+        return value;
+    }
+
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] == ' ' || bytes[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    // Parse the services field in bytes[from, to) into services: a numeric bitmask or a list of
+    // service names. Returns false when the field is malformed or names an unknown service
+    private boolean parseServices(byte[] bytes, int from, int to) {
+        from = skipSpaces(bytes, from, to);
+        while (to > from && (bytes[to - 1] == ' ' || bytes[to - 1] == '\t')) {
+            to--;
+        }
+        if (to - from >= 2 && bytes[from] == '"' && bytes[to - 1] == '"') {
+            from++;
+            to--;
+        }
+        if (from < to && bytes[from] >= '0' && bytes[from] <= '9') {
+            return parseMask(bytes, from, to);
+        }
+        long serviceBitmask = 0;
+        long[] high = null;
+        int nameStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || bytes[i] == ';' || bytes[i] == '|' || bytes[i] == ',') {
+                int start = skipSpaces(bytes, nameStart, i);
+                int end = i;
+                while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+                    end--;
+                }
+                if (end > start) {
+                    int service = matchService(bytes, start, end);
+                    if (service < 0) {
+                        return false;
+                    }
+                    if (service < Long.SIZE) {
+                        serviceBitmask |= 1L << service;
+                    } else {
+                        if (high == null) {
+                            high = new long[(serviceCount - 1) / Long.SIZE];
+                        }
+                        high[service / Long.SIZE - 1] |= 1L << service;
+                    }
+                }
+                nameStart = i + 1;
+            }
+        }
+        services = serviceBitmask;
+        highServices = Place.trimHighWords(high);
+        return true;
+    }
+
+    // Parse the digits filling bytes[from, to) as a non-negative long bitmask into services
+    // Returns false when it is malformed or sets bits of service types that are not registered
+    private boolean parseMask(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9' || value > (Long.MAX_VALUE - (bytes[i] - '0')) / 10) {
+                return false;
+            }
+            value = value * 10 + (bytes[i] - '0');
+        }
+        services = value;
+        highServices = null; // A numeric bitmask only covers services 0-63
+        return (value & ~registeredServices) == 0;
+    }
+
+    // Bits of the registered service types within mask word
+    private long registeredBits(int word) {
+        int first = word * Long.SIZE;
+        if (serviceCount >= first + Long.SIZE) {
+            return -1L;
+        }
+        return serviceCount <= first ? 0 : (1L << (serviceCount - first)) - 1;
+    }
+
+    private int matchService(byte[] bytes, int from, int to) {
+        int length = to - from;
+        int slot = hashName(bytes, from, to) & (serviceSlots.length - 1);
+        while (serviceSlots[slot] != 0) {
+            int s = serviceSlots[slot] - 1;
+            byte[] name = serviceNames[s];
+            int i = 0;
+            while (i < length && i < name.length && foldCase(bytes[from + i]) == name[i]) {
+                i++;
+            }
+            if (i == length && i == name.length) {
+                return s;
+            }
+            slot = (slot + 1) & (serviceSlots.length - 1);
+        }
+        return -1;
+    }
+
+    // Case-folded hash of the name in bytes[from, to)
+    private static int hashName(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = hash * 31 + foldCase(bytes[i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte foldCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private void parseBinary(FileChannel channel) throws IOException, InterruptedException {
+        int maskWords = readBinaryHeader(channel);
+        int recordBytes = maskWords == 0 ? LEGACY_RECORD_BYTES : 2 * Integer.BYTES + maskWords * Long.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES - READ_BUFFER_BYTES % recordBytes);
+        boolean eof = false;
+        while (!eof) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            int complete = buffer.position() / recordBytes;
+            buffer.flip();
+            for (int r = 0; r < complete; r++) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                long serviceBitmask;
+                long[] high = null;
+                boolean registered = true;
+                if (maskWords == 0) {
+                    serviceBitmask = buffer.getInt() & 0xFFFFFFFFL;
+                } else {
+                    serviceBitmask = buffer.getLong();
+                    for (int w = 1; w < maskWords; w++) {
+                        long word = buffer.getLong(); // Services from 64w on
+                        if (word != 0) {
+                            registered &= (word & ~registeredBits(w)) == 0;
+                            if (high == null) {
+                                high = new long[maskWords - 1];
+                            }
+                            high[w - 1] = word;
+                        }
+                    }
+                }
+                if (registered && (serviceBitmask & ~registeredServices) == 0) {
+                    emit(x, y, serviceBitmask, Place.trimHighWords(high));
+                } else {
+                    rejected++;
+                }
+            }
+            buffer.compact();
+            if (eof && buffer.position() > 0) {
+                rejected++; // A trailing partial record
+            }
+        }
+    }
+
+    // Read the binary header and leave the channel at the first record; returns the number of
+    // mask words per record, or 0 for a headerless file in the original format
+    private static int readBinaryHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+            // Read as much of the header as the file holds
+        }
+        header.flip();
+        if (header.remaining() < Integer.BYTES || header.getInt(0) != BINARY_MAGIC) {
+            channel.position(0);
+            return 0;
+        }
+        if (header.remaining() < BINARY_HEADER_BYTES || header.getInt(Integer.BYTES) != BINARY_VERSION) {
+            throw new IOException("Unsupported binary place file version");
+        }
+        int maskWords = header.getInt(2 * Integer.BYTES);
+        if (maskWords < 1 || maskWords > MAX_MASK_WORDS) {
+            throw new IOException("Invalid mask width in binary place file: " + maskWords + " words");
+        }
+        return maskWords;
+    }
+}
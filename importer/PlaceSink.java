@@ -0,0 +1,9 @@
+package importer;
+
+// Receives the places read by a PlaceImporter, one chunk of parallel arrays at a time
+public interface PlaceSink {
+    // Called on the importing thread; the arrays are reused once this returns, except the
+    // high service words of each row, which the sink may keep. highServiceWords is null when
+    // no row of the chunk offers a service from 64 on
+    void accept(int[] xs, int[] ys, long[] serviceBitmasks, long[][] highServiceWords, int length);
+}
@@ -2,39 +2,284 @@ package map2D;
 
 import place.*;
 import rectangle.Rectangle;
+import shape.Shape;
 import arrayList.ArrayList;
 import quadTree.*;
+import importer.PlaceImporter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Random;
 import java.util.Scanner;
 
 public class Map2D {
     private QuadTree root;
     private ArrayList<Place> batch;
+    private OperationLog log; // Null until openLog is called
+    // Stamp of the snapshot the map was last loaded from or saved to; 0 for a map never saved
+    // (snapshots are stamped from 1)
+    private long checkpoint;
+    private ServiceIndexes serviceIndexes; // Null until enableServiceIndexes is called
+    private final SearchCache searchCache = new SearchCache(SEARCH_CACHE_SIZE);
     private static final int BATCH_SIZE = 10000;
+    private static final int PAGE_SIZE = 50;
+    private static final int SEARCH_CACHE_SIZE = 1024;
+    private static final int BULK_LOAD_SIZE = 1_000_000;
+    private static final int PARALLEL_GRANULARITY = 50_000;
     private static final int MAP_WIDTH = 10000000;  // Example map width
     private static final int MAP_HEIGHT = 10000000; // Example map height
+    private static final Path SNAPSHOT_PATH = Paths.get("map2d.snapshot");
+    private static final Path LOG_PATH = Paths.get("map2d.log");
 
     public Map2D() {
         this.root = new QuadTree(new Rectangle(0, 0, MAP_WIDTH, MAP_HEIGHT), 0);
+        this.root.enablePointIndex(); // Edits and removals look places up by exact coordinates
         this.batch = new ArrayList<>();
     }
 
     // Add a place to the map
-    public void addPlace(int x, int y, int serviceBitmask) {
-        Place newPlace = new Place(x, y, serviceBitmask);
+    public void addPlace(int x, int y, long serviceBitmask) {
+        addPlace(x, y, serviceBitmask, null);
+    }
+
+    // Add a place offering services from 64 on, given as high service words (see Place)
+    public void addPlace(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        Place newPlace = new Place(x, y, serviceBitmask, highServiceWords);
+        checkHighWords(newPlace.getHighServiceWords());
+        if (log != null) {
+            log.logAdd(x, y, serviceBitmask, newPlace.getHighServiceWords());
+        }
         batch.add(newPlace);
         if (batch.size() == BATCH_SIZE) {
             flushBatch(); // Insert the batch to the QuadTree and clear it
         }
     }
 
+    // Add many places at once; the quadrant subtrees are built in parallel
+    // The arrays are reordered in place
+    public void addPlaces(int[] xs, int[] ys, long[] serviceBitmasks, int length) {
+        addPlaces(xs, ys, serviceBitmasks, null, length);
+    }
+
+    // Same, with the high service words of each place (highServiceWords is null when no place
+    // offers a service from 64 on)
+    public void addPlaces(int[] xs, int[] ys, long[] serviceBitmasks, long[][] highServiceWords, int length) {
+        flushBatch(); // Keep places added earlier ahead of this bulk load
+        if (highServiceWords != null) {
+            for (int i = 0; i < length; i++) {
+                highServiceWords[i] = Place.trimHighWords(highServiceWords[i]);
+                checkHighWords(highServiceWords[i]);
+            }
+        }
+        if (log != null) {
+            for (int i = 0; i < length; i++) {
+                log.logAdd(xs[i], ys[i], serviceBitmasks[i], highServiceWords == null ? null : highServiceWords[i]);
+            }
+            log.requestCommit(); // Written while the places are inserted
+        }
+        if (serviceIndexes != null) {
+            serviceIndexes.addAll(xs, ys, serviceBitmasks, highServiceWords, length);
+        }
+        root.insertBatchParallel(xs, ys, serviceBitmasks, highServiceWords, length, PARALLEL_GRANULARITY);
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    // Services beyond the registry's limit could not be logged or saved
+    private static void checkHighWords(long[] highServiceWords) {
+        if (highServiceWords != null && highServiceWords.length > ServiceRegistry.MAX_SERVICE_TYPES / Long.SIZE - 1) {
+            throw new IllegalArgumentException("Service words beyond the " + ServiceRegistry.MAX_SERVICE_TYPES
+                    + " service types limit");
+        }
+    }
+
     public void flushBatch() {
         if (!batch.isEmpty()) {
+            if (serviceIndexes != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Place place = batch.get(i);
+                    serviceIndexes.add(place.getX(), place.getY(), place.getServiceBitmask(), place.getHighServiceWords());
+                }
+            }
             root.insertBatch(batch);
             batch.clear(); // Clear the batch after insertion to free up memory
+            if (log != null) {
+                log.sync(); // Group commit: the log is synced once per batch
+            }
+        }
+    }
+
+    // Keep a spatial index per service type so searches filtered on rare services skip the
+    // places that do not offer them; the indexes follow every later change to the map
+    public void enableServiceIndexes() {
+        if (serviceIndexes == null) {
+            flushBatch();
+            serviceIndexes = new ServiceIndexes(root.getBoundary());
+            serviceIndexes.build(root);
+        }
+    }
+
+    // Record operation latencies and query work from now on; search then reports its work
+    public void enableMetrics() {
+        root.enableMetrics();
+    }
+
+    // Print operation latencies, event counters and the shape of the tree
+    public void printMetrics() {
+        QuadTreeMetrics metrics = root.getMetrics();
+        if (metrics == null) {
+            System.out.println("Metrics are disabled.");
+            return;
+        }
+        System.out.println(metrics);
+        System.out.println("search cache hits=" + searchCache.getHits() + " misses=" + searchCache.getMisses());
+        System.out.println(root.getTreeShape());
+    }
+
+    // Stream places from a CSV file (a .csv extension) or a packed binary file into the map
+    // Returns the number of places imported; malformed rows are skipped and reported
+    public long importPlaces(Path path) throws IOException {
+        flushBatch();
+        PlaceImporter importer = new PlaceImporter(this::addPlaces);
+        long imported = path.toString().toLowerCase().endsWith(".csv")
+                ? importer.importCsv(path)
+                : importer.importBinary(path);
+        if (importer.getRejected() > 0) {
+            System.out.println("Skipped " + importer.getRejected() + " malformed rows in " + path);
+        }
+        return imported;
+    }
+
+    // Write every place, including the pending batch, to a snapshot file
+    // Every snapshot gets the next checkpoint stamp and empties the log, so the log only ever
+    // continues the latest snapshot
+    public void saveSnapshot(Path path) throws IOException {
+        flushBatch();
+        long next = checkpoint + 1;
+        root.save(path, next);
+        checkpoint = next;
+        if (log != null) {
+            log.truncate(checkpoint); // A crash before this leaves records the next open drops
+        }
+    }
+
+    // Replace the map's contents with a snapshot written by saveSnapshot
+    public void loadSnapshot(Path path) throws IOException {
+        QuadTree loaded = QuadTree.load(path);
+        loaded.enablePointIndex();
+        if (root.getMetrics() != null) {
+            loaded.enableMetrics();
+        }
+        root = loaded;
+        checkpoint = loaded.getSnapshotStamp();
+        batch.clear();
+        searchCache.clear();
+        if (log != null) {
+            log.truncate(checkpoint); // The logged changes were made to the replaced contents
+        }
+        if (serviceIndexes != null) {
+            serviceIndexes = new ServiceIndexes(root.getBoundary());
+            serviceIndexes.build(root);
+        }
+    }
+
+    // Log every later change to path so it survives a crash; records already in the log
+    // (changes made after the last checkpoint) are replayed first. The map must hold the
+    // snapshot the log continues from (or be empty for a log of a map never saved); any other
+    // log is refused with an IOException instead of being replayed onto the wrong places
+    // Changes reach the disk in groups: within one commit window of their call, when the batch
+    // holding them is flushed, or at the latest on sync. A crash can lose the changes of the
+    // last commit window, but never leaves the log half-applied
+    public void openLog(Path path) throws IOException {
+        if (log == null) {
+            flushBatch();
+            log = OperationLog.open(path, this, checkpoint, root.size() == 0);
+            flushBatch();
+        }
+    }
+
+    // Durability barrier: return once every change made so far, including places still waiting
+    // in the batch, is in the log on disk
+    public void sync() {
+        flushBatch();
+        if (log != null) {
+            log.sync();
         }
     }
 
+    // Write a snapshot holding every change so far and empty the log
+    public void checkpoint(Path snapshotPath) throws IOException {
+        saveSnapshot(snapshotPath);
+    }
+
+    // Write out the changes still buffered in the log and close it
+    public void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    // Replay of logged changes, applied without logging them again
+    void replayAdd(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        batch.add(new Place(x, y, serviceBitmask, highServiceWords));
+        if (batch.size() == BATCH_SIZE) {
+            flushBatch();
+        }
+    }
+
+    void replaySetServices(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        flushBatch(); // Changes may refer to places still waiting in the batch
+        applySetServices(x, y, serviceBitmask, highServiceWords);
+    }
+
+    void replayRemove(int x, int y) {
+        flushBatch();
+        applyRemove(x, y);
+    }
+
+    void replayMove(int oldX, int oldY, int newX, int newY) {
+        flushBatch();
+        applyMove(oldX, oldY, newX, newY);
+    }
+
+    // Changes to existing places go to the tree and the service indexes together; shared by
+    // the public edits and log replay
+    private boolean applySetServices(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        Place place = serviceIndexes == null ? null : root.findPlace(x, y);
+        if (!root.updateServiceBitmask(x, y, serviceBitmask, highServiceWords)) {
+            return false;
+        }
+        if (place != null) {
+            serviceIndexes.setServices(x, y, place.getServiceBitmask(), serviceBitmask, highServiceWords);
+        }
+        return true;
+    }
+
+    private boolean applyRemove(int x, int y) {
+        Place place = serviceIndexes == null ? null : root.findPlace(x, y);
+        if (!root.removePlace(x, y)) {
+            return false;
+        }
+        if (place != null) {
+            serviceIndexes.remove(x, y, place.getServiceBitmask());
+        }
+        return true;
+    }
+
+    private boolean applyMove(int oldX, int oldY, int newX, int newY) {
+        Place place = serviceIndexes == null ? null : root.findPlace(oldX, oldY);
+        if (!root.movePlace(oldX, oldY, newX, newY)) {
+            return false;
+        }
+        if (place != null) {
+            serviceIndexes.move(oldX, oldY, newX, newY, place.getServiceBitmask());
+        }
+        return true;
+    }
+
     // Edit services of a place
     public void editPlaceServices(int x, int y, String action, String serviceType) {
         Place place = root.findPlace(x, y);
@@ -47,9 +292,17 @@ public class Map2D {
 
         if ("add".equalsIgnoreCase(action) && !hasService) {
             place.toggleService(serviceIndex, true);
+            applySetServices(x, y, place.getServiceBitmask(), place.getHighServiceWords());
+            if (log != null) {
+                log.logSetServices(x, y, place.getServiceBitmask(), place.getHighServiceWords());
+            }
             System.out.println("Service '" + serviceType + "' added. Updated Place: " + place);
         } else if ("remove".equalsIgnoreCase(action) && hasService) {
             place.toggleService(serviceIndex, false);
+            applySetServices(x, y, place.getServiceBitmask(), place.getHighServiceWords());
+            if (log != null) {
+                log.logSetServices(x, y, place.getServiceBitmask(), place.getHighServiceWords());
+            }
             System.out.println("Service '" + serviceType + "' removed. Updated Place: " + place);
         } else {
             System.out.println("No changes made. Place details: " + place);
@@ -58,37 +311,230 @@ public class Map2D {
 
     // Remove a place from the map
     public void removePlace(int x, int y) {
-        boolean success = root.removePlace(x, y);
+        boolean success = applyRemove(x, y);
         if (!success) {
             System.out.println("Failed to remove place at coordinates (" + x + ", " + y + ")");
+        } else if (log != null) {
+            log.logRemove(x, y);
         }
     }
 
-    // Search for places within a specified area and optional service filter
-    public void search(Rectangle area, Integer serviceBitmask) {
-        ArrayList<Place> results = new ArrayList<>();
-        root.query(area, results, serviceBitmask);
+    // Move a place to new coordinates, keeping its services
+    public void movePlace(int oldX, int oldY, int newX, int newY) {
+        boolean success = applyMove(oldX, oldY, newX, newY);
+        if (!success) {
+            System.out.println("Failed to move place at coordinates (" + oldX + ", " + oldY + ")");
+        } else if (log != null) {
+            log.logMove(oldX, oldY, newX, newY);
+        }
+    }
+
+    // Search for places within a specified area (Rectangle, Circle or ConvexPolygon) and optional service filter
+    // Only the displayed places are materialised; the total comes from the node statistics
+    // Rectangle searches are answered from the cache while nothing changed in their district
+    public void search(Shape area, Long serviceBitmask) {
         System.out.println("Displaying up to 50 places: ");
-        for (int i = 0; i < Math.min(50, results.size()); i++) {
+        if (area instanceof Rectangle) {
+            Rectangle rectangle = (Rectangle) area;
+            SearchCache.Entry cached = searchCache.get(rectangle, serviceBitmask);
+            if (cached == null) {
+                cached = new SearchCache.Entry(rectangle, serviceBitmask,
+                        root.getCoveringNodes(rectangle, SearchCache.MAX_ANCHORS));
+                runSearch(area, serviceBitmask, cached);
+                searchCache.put(cached);
+            }
+            for (int i = 0; i < cached.length; i++) {
+                System.out.println(new Place(cached.xs[i], cached.ys[i], cached.serviceBitmasks[i],
+                        cached.highServiceWords == null ? null : cached.highServiceWords[i]));
+            }
+            System.out.println(cached.total + " places found!");
+            return;
+        }
+        runSearch(area, serviceBitmask, null);
+    }
+
+    // Query the tree for search, printing the results or, with an entry, storing them in it
+    private void runSearch(Shape area, Long serviceBitmask, SearchCache.Entry entry) {
+        QuadTreeMetrics metrics = root.getMetrics();
+        if (metrics != null) {
+            metrics.resetQueryCounters();
+        }
+        if (entry != null) {
+            entry.xs = new int[PAGE_SIZE];
+            entry.ys = new int[PAGE_SIZE];
+            entry.serviceBitmasks = new long[PAGE_SIZE];
+        }
+        PlaceVisitor display = (x, y, services, high) -> {
+            if (entry == null) {
+                System.out.println(new Place(x, y, services, high));
+            } else {
+                entry.xs[entry.length] = x;
+                entry.ys[entry.length] = y;
+                entry.serviceBitmasks[entry.length] = services;
+                if (high != null) {
+                    if (entry.highServiceWords == null) {
+                        entry.highServiceWords = new long[PAGE_SIZE][];
+                    }
+                    entry.highServiceWords[entry.length] = high;
+                }
+                entry.length++;
+            }
+            return true;
+        };
+        int total;
+        if (usesServiceIndexes(serviceBitmask)) {
+            serviceIndexes.query(area, serviceBitmask, PAGE_SIZE, display);
+            total = serviceIndexes.count(area, serviceBitmask);
+        } else {
+            root.query(area, serviceBitmask, PAGE_SIZE, display);
+            total = root.count(area, serviceBitmask);
+        }
+        if (entry == null) {
+            System.out.println(total + " places found!");
+        } else {
+            entry.total = total;
+        }
+        if (metrics != null) {
+            System.out.println("Search work: " + metrics.queryCounters());
+        }
+    }
+
+    // Query planner: filtered searches go to the per-service indexes when the filtered services
+    // are rare enough, otherwise to the main tree with mask filtering
+    private boolean usesServiceIndexes(Long serviceBitmask) {
+        return serviceIndexes != null && serviceBitmask != null && serviceIndexes.isSelective(root, serviceBitmask);
+    }
+
+    // Search for places satisfying a service predicate such as "Cafe AND Gym AND NOT Hotel"
+    // The predicate is evaluated inside the tree traversal, so only matching places come back
+    public void searchMatching(Shape area, ServicePredicate predicate) {
+        System.out.println("Displaying up to 50 places: ");
+        QuadTree source = treeFor(predicate);
+        source.queryMatching(area, predicate, PAGE_SIZE, (x, y, services, high) -> {
+            System.out.println(new Place(x, y, services, high));
+            return true;
+        });
+        System.out.println(source.countMatching(area, predicate) + " places found!");
+    }
+
+    // Count places within a specified area satisfying a service predicate
+    public int countMatching(Shape area, ServicePredicate predicate) {
+        return treeFor(predicate).countMatching(area, predicate);
+    }
+
+    // Query planner for predicates: the index of the rarest required service when it is
+    // selective enough, otherwise the main tree
+    private QuadTree treeFor(ServicePredicate predicate) {
+        QuadTree index = serviceIndexes == null ? null : serviceIndexes.selectiveIndex(root, predicate.getRequired());
+        return index != null ? index : root;
+    }
+
+    // Display one page of search results; pass null for the first page and the returned
+    // cursor for the next one. Returns null when there are no more pages
+    public String searchPage(Shape area, Long serviceBitmask, String cursor) {
+        ArrayList<Place> results = new ArrayList<>(PAGE_SIZE);
+        String next = root.queryPage(area, serviceBitmask, cursor, PAGE_SIZE, results);
+        for (int i = 0; i < results.size(); i++) {
             System.out.println(results.get(i));
         }
-        System.out.println(results.size() + " places found!");
+        System.out.println(next == null ? "No more places." : "More places available.");
+        return next;
+    }
+
+    // Count places within a specified area and optional service filter without collecting them
+    public int count(Shape area, Long serviceBitmask) {
+        if (usesServiceIndexes(serviceBitmask)) {
+            return serviceIndexes.count(area, serviceBitmask);
+        }
+        return root.count(area, serviceBitmask);
+    }
+
+    // Count places within a specified area for every service type
+    public void countByService(Shape area) {
+        int[] totals = root.countByService(area);
+        for (int i = 0; i < totals.length; i++) {
+            System.out.println(ServiceRegistry.getServiceType(i) + ": " + totals[i]);
+        }
+    }
+
+    // Find the k places closest to (x, y) with an optional service filter
+    public ArrayList<Place> nearest(int x, int y, int k, Long serviceBitmask) {
+        ArrayList<Place> results = root.nearest(x, y, k, serviceBitmask);
+        System.out.println("Nearest " + results.size() + " places to (" + x + ", " + y + "): ");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println(results.get(i));
+        }
+        return results;
     }
 
     public static void main(String[] args) {
         Map2D map = new Map2D();
 
-        // Adding places with various services
-        Random random = new Random();
-        for (int i = 0; i < 10_000_000; i++) {
-            // Randomly distribute points across the entire boundary to ensure a uniform spread
-            int x = random.nextInt(Map2D.MAP_WIDTH);
-            int y = random.nextInt(Map2D.MAP_HEIGHT) ;
-            int serviceBitmask = QuadTree.generateServiceBitmask(random, ServiceRegistry.getServiceTypes().length);
+        // Restart from the last snapshot when there is one instead of rebuilding the map
+        boolean restored = false;
+        if (Files.exists(SNAPSHOT_PATH)) {
+            try {
+                map.loadSnapshot(SNAPSHOT_PATH);
+                restored = true;
+                System.out.println("Loaded " + map.root.size() + " places from " + SNAPSHOT_PATH);
+            } catch (IOException e) {
+                System.out.println("Could not load snapshot: " + e.getMessage());
+            }
+        }
+
+        if (!restored) {
+            // A log only makes sense on top of its snapshot; without it the recorded changes
+            // would be replayed onto the newly generated places
+            try {
+                if (Files.deleteIfExists(LOG_PATH)) {
+                    System.out.println("Discarded " + LOG_PATH + " as its snapshot could not be loaded");
+                }
+            } catch (IOException e) {
+                System.out.println("Could not discard the operation log: " + e.getMessage());
+            }
+
+            // Adding places with various services, loaded in large parallel batches
+            Random random = new Random();
+            int[] xs = new int[BULK_LOAD_SIZE];
+            int[] ys = new int[BULK_LOAD_SIZE];
+            long[] serviceBitmasks = new long[BULK_LOAD_SIZE];
+            int loaded = 0;
+            for (int i = 0; i < 10_000_000; i++) {
+                // Randomly distribute points across the entire boundary to ensure a uniform spread
+                xs[loaded] = random.nextInt(Map2D.MAP_WIDTH);
+                ys[loaded] = random.nextInt(Map2D.MAP_HEIGHT);
+                serviceBitmasks[loaded] = QuadTree.generateServiceBitmask(random, ServiceRegistry.getServiceTypeCount());
+                loaded++;
+
+                if (loaded == BULK_LOAD_SIZE) {
+                    map.addPlaces(xs, ys, serviceBitmasks, loaded);
+                    loaded = 0;
+                }
+            }
+            map.addPlaces(xs, ys, serviceBitmasks, loaded);
+        }
+
+        // Files named on the command line are imported on top
+        for (String file : args) {
+            try {
+                System.out.println("Imported " + map.importPlaces(Paths.get(file)) + " places from " + file);
+            } catch (IOException e) {
+                System.out.println("Could not import " + file + ": " + e.getMessage());
+            }
+        }
 
-            map.addPlace(x, y, serviceBitmask);
+        // Changes made after the last checkpoint are replayed from the log, then the map is
+        // checkpointed so the next start only has to load the snapshot
+        try {
+            map.openLog(LOG_PATH);
+            map.checkpoint(SNAPSHOT_PATH);
+        } catch (IOException e) {
+            System.out.println("Could not open the operation log: " + e.getMessage());
         }
 
+        map.enableServiceIndexes();
+        map.enableMetrics();
+
         Scanner scanner = new Scanner(System.in);
 
         boolean running = true;
@@ -98,7 +544,9 @@ public class Map2D {
             System.out.println("2. Edit Place");
             System.out.println("3. Remove Place");
             System.out.println("4. Search");
-            System.out.println("5. Exit");
+            System.out.println("5. Find Nearest");
+            System.out.println("6. Show Metrics");
+            System.out.println("7. Exit");
             System.out.print("Enter your choice: ");
 
             int choice = scanner.nextInt();
@@ -122,7 +570,7 @@ public class Map2D {
                     System.out.println("9. Hotel");
                     System.out.println("10. Gym");
                     int serviceTypeIndex = scanner.nextInt() - 1;
-                    map.addPlace(x, y, 1 << serviceTypeIndex);
+                    map.addPlace(x, y, 1L << serviceTypeIndex);
                     System.out.println("Do you want to add more service types ?: ");
                     System.out.println("(1 to continue, any other number to stop)");
                     int addMoreServiceType = scanner.nextInt();
@@ -207,7 +655,7 @@ public class Map2D {
                         int searchServiceTypeIndex = scanner.nextInt() - 1;
                         scanner.nextLine(); // Consume newline character
                         System.out.println("Search Results:");
-                        map.search(searchArea, 1 << searchServiceTypeIndex); // Search with service filter
+                        map.search(searchArea, 1L << searchServiceTypeIndex); // Search with service filter
                         break;
                     } else {
                         System.out.println("Search Results:");
@@ -215,6 +663,45 @@ public class Map2D {
                         break;
                     }
                 case 5:
+                    System.out.print("Enter X coordinate: ");
+                    int nearX = scanner.nextInt();
+                    System.out.print("Enter Y coordinate: ");
+                    int nearY = scanner.nextInt();
+                    System.out.print("Enter number of places to find: ");
+                    int k = scanner.nextInt();
+                    System.out.println("Do you want to search with service filters ?");
+                    System.out.println("(1 for yes, any other number for no): ");
+                    int filterNearest = scanner.nextInt();
+                    scanner.nextLine(); // Consume newline character
+                    if (filterNearest == 1) {
+                        System.out.println("Enter service type (1-10): ");
+                        System.out.println("1. Cafe");
+                        System.out.println("2. Restaurant");
+                        System.out.println("3. Gas Station");
+                        System.out.println("4. Library");
+                        System.out.println("5. Hospital");
+                        System.out.println("6. School");
+                        System.out.println("7. Store");
+                        System.out.println("8. Park");
+                        System.out.println("9. Hotel");
+                        System.out.println("10. Gym");
+                        int nearestServiceTypeIndex = scanner.nextInt() - 1;
+                        scanner.nextLine(); // Consume newline character
+                        map.nearest(nearX, nearY, k, 1L << nearestServiceTypeIndex);
+                    } else {
+                        map.nearest(nearX, nearY, k, null);
+                    }
+                    break;
+                case 6:
+                    map.printMetrics();
+                    break;
+                case 7:
+                    try {
+                        map.checkpoint(SNAPSHOT_PATH); // Keep this session's changes for the next start
+                        map.closeLog();
+                    } catch (IOException e) {
+                        System.out.println("Could not save snapshot: " + e.getMessage());
+                    }
                     running = false;
                     break;
                 default:
@@ -0,0 +1,401 @@
+package map2D;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import place.ServiceRegistry;
+
+// Append-only log of the changes made to a Map2D since its last snapshot.
+// The header names the checkpoint (the stamp of the snapshot) the records continue from.
+// Records are a one-byte opcode followed by big-endian operands (int coordinates, long service
+// bitmasks) and are staged in memory; places offering services from 64 on are logged with the
+// wide opcodes, which append a word count and the place's high service words;
+// a background thread writes and fsyncs them as a group once per commit window or whenever
+// a batch is flushed. Callers that need their records on disk wait in sync, and everything
+// appended while a group is being written shares the next fsync. Two buffers are swapped on
+// each commit, letting new records be appended while the previous group is being written.
+class OperationLog {
+    private static final int MAGIC = 0x4D324C47; // "M2LG"
+    private static final int VERSION = 3;
+    // Oldest version still replayed; version 2 logs have no wide records
+    private static final int MIN_VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final long COMMIT_INTERVAL_MS = 20;
+    // Opcodes; 0 never starts a record, so a zero-filled tail ends the replay
+    private static final byte ADD = 1;
+    private static final byte SET_SERVICES = 2;
+    private static final byte REMOVE = 3;
+    private static final byte MOVE = 4;
+    private static final byte ADD_WIDE = 5;
+    private static final byte SET_SERVICES_WIDE = 6;
+    private static final int MAX_HIGH_WORDS = ServiceRegistry.MAX_SERVICE_TYPES / Long.SIZE - 1;
+    private static final int MAX_RECORD_BYTES = 1 + 2 * Integer.BYTES + Long.BYTES + 1 + MAX_HIGH_WORDS * Long.BYTES;
+
+    private final FileChannel channel;
+    // Guards channel writes so only one group is written at a time
+    private final Object writeLock = new Object();
+    // Records appended since the last swap; active and standby are guarded by this
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private ByteBuffer standby = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private boolean commitRequested;
+    private boolean closed;
+    // Records appended so far and records known to be on disk; guarded by this
+    private long appended;
+    private long durable;
+    private volatile IOException failure;
+    private final Thread committer;
+
+    private OperationLog(FileChannel channel) {
+        this.channel = channel;
+        this.committer = new Thread(this::runCommitter, "map2d-log-committer");
+        this.committer.setDaemon(true);
+    }
+
+    // Open the log at path, replay its records into map and start accepting new records
+    // checkpoint is the stamp of the snapshot map was loaded from (0 when it was not); records
+    // are only replayed on top of the checkpoint they follow, and a log left over from an older
+    // checkpoint (a crash before the log was emptied) is dropped because the snapshot holds it
+    // A torn record at the end (from a crash mid-write) is cut off
+    static OperationLog open(Path path, Map2D map, long checkpoint, boolean mapEmpty) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end;
+            if (channel.size() < HEADER_BYTES) {
+                writeHeader(channel, checkpoint);
+                end = HEADER_BYTES;
+            } else {
+                long logCheckpoint = readCheckpoint(channel);
+                boolean hasRecords = channel.size() > HEADER_BYTES;
+                if (logCheckpoint < checkpoint) {
+                    writeHeader(channel, checkpoint);
+                    end = HEADER_BYTES;
+                } else if (logCheckpoint > checkpoint || (checkpoint == 0 && hasRecords && !mapEmpty)) {
+                    // Replaying onto a different map would apply the changes to the wrong places
+                    throw new IOException("Operation log " + path + " continues from checkpoint " + logCheckpoint
+                            + ", which is not the snapshot the map was loaded from");
+                } else {
+                    end = replay(channel, map);
+                    channel.truncate(end);
+                    upgradeHeader(channel);
+                }
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        OperationLog log = new OperationLog(channel);
+        log.committer.start();
+        return log;
+    }
+
+    // Empty the file, then write a header for checkpoint; a crash in between leaves an empty
+    // log of the previous checkpoint, which the next open drops
+    private static void writeHeader(FileChannel channel, long checkpoint) throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(checkpoint);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    private static long readCheckpoint(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.position(0);
+        readFully(channel, header, HEADER_BYTES);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a Map2D operation log");
+        }
+        int version = header.getInt();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported operation log version " + version);
+        }
+        return header.getLong();
+    }
+
+    // An older log is continued with records of the current version, so its header says so
+    // from here on; the rewritten field reaches the disk with the next group
+    private static void upgradeHeader(FileChannel channel) throws IOException {
+        ByteBuffer version = ByteBuffer.allocate(Integer.BYTES).putInt(VERSION);
+        version.flip();
+        channel.write(version, Integer.BYTES);
+    }
+
+    // Apply every complete record to map; returns the offset just past the last one
+    private static long replay(FileChannel channel, Map2D map) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        channel.position(HEADER_BYTES);
+        buffer.flip(); // Empty until the first read
+        long offset = HEADER_BYTES;
+        while (true) {
+            if (buffer.remaining() < MAX_RECORD_BYTES) {
+                buffer.compact();
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                    // Fill the buffer as far as the file allows
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    return offset;
+                }
+            }
+            int start = buffer.position();
+            byte op = buffer.get();
+            int operandBytes = operandBytes(op);
+            if (operandBytes < 0 || buffer.remaining() < operandBytes) {
+                return offset; // Unknown opcode or torn record: the log ends here
+            }
+            long[] high = null;
+            if (op == ADD_WIDE || op == SET_SERVICES_WIDE) {
+                int words = buffer.get(buffer.position() + operandBytes - 1);
+                if (words < 1 || words > MAX_HIGH_WORDS || buffer.remaining() < operandBytes + words * Long.BYTES) {
+                    return offset;
+                }
+                high = new long[words];
+            }
+            switch (op) {
+                case ADD:
+                case ADD_WIDE:
+                    map.replayAdd(buffer.getInt(), buffer.getInt(), buffer.getLong(), readHighWords(buffer, high));
+                    break;
+                case SET_SERVICES:
+                case SET_SERVICES_WIDE:
+                    map.replaySetServices(buffer.getInt(), buffer.getInt(), buffer.getLong(), readHighWords(buffer, high));
+                    break;
+                case REMOVE:
+                    map.replayRemove(buffer.getInt(), buffer.getInt());
+                    break;
+                default:
+                    map.replayMove(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            }
+            offset += buffer.position() - start;
+        }
+    }
+
+    // The high words of a wide record, read into high after its word count; null for a narrow one
+    private static long[] readHighWords(ByteBuffer buffer, long[] high) {
+        if (high != null) {
+            buffer.get(); // Word count, already checked
+            for (int w = 0; w < high.length; w++) {
+                high[w] = buffer.getLong();
+            }
+        }
+        return high;
+    }
+
+    // Operand bytes after the opcode; for the wide opcodes, up to and including the word count
+    private static int operandBytes(byte op) {
+        switch (op) {
+            case ADD:
+            case SET_SERVICES:
+                return 2 * Integer.BYTES + Long.BYTES;
+            case ADD_WIDE:
+            case SET_SERVICES_WIDE:
+                return 2 * Integer.BYTES + Long.BYTES + 1;
+            case REMOVE:
+                return 2 * Integer.BYTES;
+            case MOVE:
+                return 4 * Integer.BYTES;
+            default:
+                return -1;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        buffer.limit(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Operation log header is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    // high holds the place's high service words, null when it offers no service from 64 on
+    void logAdd(int x, int y, long serviceBitmask, long[] high) {
+        append(high == null ? ADD : ADD_WIDE, x, y, serviceBitmask, high, 0, 0);
+    }
+
+    void logSetServices(int x, int y, long serviceBitmask, long[] high) {
+        append(high == null ? SET_SERVICES : SET_SERVICES_WIDE, x, y, serviceBitmask, high, 0, 0);
+    }
+
+    void logRemove(int x, int y) {
+        append(REMOVE, x, y, 0, null, 0, 0);
+    }
+
+    void logMove(int oldX, int oldY, int newX, int newY) {
+        append(MOVE, oldX, oldY, 0, null, newX, newY);
+    }
+
+    // Stage one record; only when the active buffer is full does the caller write a group itself
+    private void append(byte op, int x, int y, long serviceBitmask, long[] high, int newX, int newY) {
+        while (true) {
+            IOException error = failure;
+            if (error != null) {
+                throw new UncheckedIOException("Operation log failed", error);
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Operation log is closed");
+                }
+                if (active.remaining() >= MAX_RECORD_BYTES) {
+                    active.put(op).putInt(x).putInt(y);
+                    if (op == MOVE) {
+                        active.putInt(newX).putInt(newY);
+                    } else if (op != REMOVE) {
+                        active.putLong(serviceBitmask);
+                    }
+                    if (high != null) {
+                        active.put((byte) high.length);
+                        for (long word : high) {
+                            active.putLong(word);
+                        }
+                    }
+                    appended++;
+                    return;
+                }
+            }
+            commitOrFail();
+        }
+    }
+
+    // Ask the committer to write and fsync the records appended so far without waiting for it
+    synchronized void requestCommit() {
+        commitRequested = true;
+        notifyAll();
+    }
+
+    // Wait until every record appended so far is on disk; the committer writes them with
+    // whatever else was appended in the meantime
+    void sync() {
+        synchronized (this) {
+            long target = appended;
+            commitRequested = true;
+            notifyAll();
+            while (durable < target) {
+                IOException error = failure;
+                if (error != null) {
+                    throw new UncheckedIOException("Operation log failed", error);
+                }
+                if (closed) {
+                    throw new IllegalStateException("Operation log is closed");
+                }
+                waitFor(COMMIT_INTERVAL_MS);
+            }
+        }
+    }
+
+    // Write and fsync every record appended so far, waiting for the disk
+    void commit() throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer group;
+            long groupEnd;
+            synchronized (this) {
+                if (active.position() == 0) {
+                    return;
+                }
+                group = active;
+                active = standby;
+                standby = null;
+                groupEnd = appended;
+            }
+            try {
+                group.flip();
+                while (group.hasRemaining()) {
+                    channel.write(group);
+                }
+                channel.force(false);
+                synchronized (this) {
+                    durable = groupEnd;
+                    notifyAll();
+                }
+            } finally {
+                group.clear();
+                synchronized (this) {
+                    standby = group;
+                }
+            }
+        }
+    }
+
+    private void commitOrFail() {
+        try {
+            commit();
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Operation log failed", e);
+        }
+    }
+
+    // Drop every record once the snapshot stamped checkpoint, holding their effects, has been
+    // written; later records continue from that checkpoint
+    void truncate(long checkpoint) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                active.clear();
+                durable = appended;
+                notifyAll();
+            }
+            writeHeader(channel, checkpoint);
+            channel.position(HEADER_BYTES);
+        }
+    }
+
+    // Commit what is left and release the file
+    void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void runCommitter() {
+        while (true) {
+            synchronized (this) {
+                if (!closed && !commitRequested) {
+                    waitFor(COMMIT_INTERVAL_MS);
+                }
+                if (closed) {
+                    return;
+                }
+                commitRequested = false;
+            }
+            try {
+                commit();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e; // Surfaced to the next caller appending a record or syncing
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void waitFor(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package map2D;
+
+import quadTree.QuadTree;
+import rectangle.Rectangle;
+
+// Bounded LRU cache of Map2D.search results, keyed by the search rectangle and service filter.
+// Each entry remembers up to MAX_ANCHORS tree nodes that together cover its rectangle (see
+// QuadTree.getCoveringNodes) with their generations; an edit below one of them bumps its
+// generation, so the entry is dropped on its next lookup, while edits elsewhere, even next to
+// the rectangle across a midline, leave it valid. Entries live in a chained hash table and on
+// a doubly linked recency list whose tail is evicted first.
+class SearchCache {
+    // Nodes tracked per entry; more nodes hug the rectangle tighter but make lookups slower
+    static final int MAX_ANCHORS = 16;
+
+    static final class Entry {
+        final int x, y, w, h;
+        final boolean filtered;
+        final long serviceBitmask;
+        final QuadTree[] anchors;
+        final long[] generations;
+        // Places displayed by the search, in display order, and the total count
+        int[] xs;
+        int[] ys;
+        long[] serviceBitmasks;
+        long[][] highServiceWords; // Null unless a displayed place offers a service from 64 on
+        int length;
+        int total;
+        Entry hashNext;
+        Entry newer;
+        Entry older;
+
+        // Start an entry for a search about to run; anchors must cover the rectangle
+        Entry(Rectangle area, Long serviceBitmask, QuadTree[] anchors) {
+            this.anchors = anchors;
+            this.generations = new long[anchors.length];
+            for (int i = 0; i < anchors.length; i++) {
+                generations[i] = anchors[i].getGeneration();
+            }
+            this.x = area.getX();
+            this.y = area.getY();
+            this.w = area.getW();
+            this.h = area.getH();
+            this.filtered = serviceBitmask != null;
+            this.serviceBitmask = serviceBitmask == null ? 0 : serviceBitmask;
+        }
+
+        boolean matches(Rectangle area, Long serviceBitmask) {
+            return x == area.getX() && y == area.getY() && w == area.getW() && h == area.getH()
+                    && filtered == (serviceBitmask != null)
+                    && (serviceBitmask == null || this.serviceBitmask == serviceBitmask);
+        }
+
+        // Whether a place under one of the anchors changed since the search ran
+        boolean isStale() {
+            for (int i = 0; i < anchors.length; i++) {
+                if (anchors[i].getGeneration() != generations[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final int capacity;
+    private final Entry[] table;
+    private final Entry recency = new Entry(new Rectangle(0, 0, 0, 0), null, new QuadTree[0]); // List sentinel
+    private int size;
+    private long hits;
+    private long misses;
+
+    SearchCache(int capacity) {
+        this.capacity = capacity;
+        this.table = new Entry[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2];
+        recency.newer = recency;
+        recency.older = recency;
+    }
+
+    private int bucket(Rectangle area, Long serviceBitmask) {
+        return bucket(area.getX(), area.getY(), area.getW(), area.getH(), serviceBitmask == null ? -1 : serviceBitmask);
+    }
+
+    private int bucket(Entry entry) {
+        return bucket(entry.x, entry.y, entry.w, entry.h, entry.filtered ? entry.serviceBitmask : -1);
+    }
+
+    private int bucket(int x, int y, int w, int h, long serviceBitmask) {
+        int hash = x;
+        hash = hash * 31 + y;
+        hash = hash * 31 + w;
+        hash = hash * 31 + h;
+        hash = hash * 31 + Long.hashCode(serviceBitmask);
+        hash ^= hash >>> 16;
+        return hash & (table.length - 1);
+    }
+
+    // The cached result for the search, or null when there is none or it went stale
+    Entry get(Rectangle area, Long serviceBitmask) {
+        for (Entry entry = table[bucket(area, serviceBitmask)]; entry != null; entry = entry.hashNext) {
+            if (entry.matches(area, serviceBitmask)) {
+                if (entry.isStale()) {
+                    remove(entry);
+                    break;
+                }
+                unlink(entry);
+                linkNewest(entry);
+                hits++;
+                return entry;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // Add an entry whose results have been filled in
+    void put(Entry entry) {
+        int index = bucket(entry);
+        entry.hashNext = table[index];
+        table[index] = entry;
+        linkNewest(entry);
+        if (++size > capacity) {
+            remove(recency.newer);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = null;
+        }
+        recency.newer = recency;
+        recency.older = recency;
+        size = 0;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    private void remove(Entry entry) {
+        int index = bucket(entry);
+        if (table[index] == entry) {
+            table[index] = entry.hashNext;
+        } else {
+            Entry previous = table[index];
+            while (previous.hashNext != entry) {
+                previous = previous.hashNext;
+            }
+            previous.hashNext = entry.hashNext;
+        }
+        unlink(entry);
+        size--;
+    }
+
+    private void unlink(Entry entry) {
+        entry.newer.older = entry.older;
+        entry.older.newer = entry.newer;
+    }
+
+    // The recency list is circular through the sentinel: its older neighbour is the most
+    // recently used entry and its newer neighbour the least recently used one
+    private void linkNewest(Entry entry) {
+        entry.older = recency.older;
+        entry.newer = recency;
+        recency.older.newer = entry;
+        recency.older = entry;
+    }
+}
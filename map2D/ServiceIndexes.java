@@ -0,0 +1,196 @@
+package map2D;
+
+import place.Place;
+import place.ServiceRegistry;
+import quadTree.PlaceVisitor;
+import quadTree.QuadTree;
+import rectangle.Rectangle;
+import shape.Shape;
+
+// Secondary spatial indexes for Map2D: one QuadTree per registered service type holding only
+// the places that offer it (with their full service bitmask). A search filtered on rare
+// services then walks trees whose size is the number of matching places instead of the
+// main tree. A place offering several services sits in several indexes; queries over a
+// multi-service filter visit the indexes in bit order and skip places already reported by
+// an index of a lower bit, so each place is counted once.
+// Only services 0-63 (the first mask word) are indexed; the copies still carry a place's
+// high service words, so predicates on later services can be tested on them.
+class ServiceIndexes {
+    // The indexes are used when the filtered services cover at most this fraction of all places
+    private static final int SELECTIVITY_DIVISOR = 8;
+    private final QuadTree[] indexes;
+
+    ServiceIndexes(Rectangle boundary) {
+        indexes = new QuadTree[Math.min(ServiceRegistry.getServiceTypeCount(), Long.SIZE)];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = new QuadTree(boundary, 0);
+        }
+    }
+
+    // Index every place of the main tree
+    void build(QuadTree root) {
+        int size = root.size();
+        int[] xs = new int[size];
+        int[] ys = new int[size];
+        long[] serviceBitmasks = new long[size];
+        long[][] highServiceWords = new long[size][];
+        int[] length = new int[1];
+        root.query(root.getBoundary(), null, (x, y, serviceBitmask, high) -> {
+            xs[length[0]] = x;
+            ys[length[0]] = y;
+            serviceBitmasks[length[0]] = serviceBitmask;
+            highServiceWords[length[0]] = high;
+            length[0]++;
+            return true;
+        });
+        addAll(xs, ys, serviceBitmasks, highServiceWords, length[0]);
+    }
+
+    // Planner: the per-service indexes pay off when few places offer the filtered services,
+    // judged from the main tree's per-service counts
+    boolean isSelective(QuadTree root, long serviceBitmask) {
+        if (serviceBitmask == 0 || indexed(serviceBitmask) != serviceBitmask) {
+            return false; // Services outside the registry are not indexed
+        }
+        long matching = 0;
+        for (long remaining = serviceBitmask; remaining != 0; remaining &= remaining - 1) {
+            matching += root.getServiceCount(Long.numberOfTrailingZeros(remaining));
+        }
+        return matching <= root.size() / SELECTIVITY_DIVISOR;
+    }
+
+    // Planner for predicates: the index of the required service offered by the fewest places,
+    // or null when none is required or even the rarest is too common for its index to pay off
+    // Every match of the predicate offers that service, so the index holds all of them
+    QuadTree selectiveIndex(QuadTree root, long requiredBitmask) {
+        int rarest = -1;
+        int rarestCount = Integer.MAX_VALUE;
+        for (long remaining = indexed(requiredBitmask); remaining != 0; remaining &= remaining - 1) {
+            int service = Long.numberOfTrailingZeros(remaining);
+            int count = root.getServiceCount(service);
+            if (count < rarestCount) {
+                rarest = service;
+                rarestCount = count;
+            }
+        }
+        return rarest >= 0 && rarestCount <= root.size() / SELECTIVITY_DIVISOR ? indexes[rarest] : null;
+    }
+
+    void add(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        addCopies(x, y, serviceBitmask, serviceBitmask, highServiceWords);
+    }
+
+    // Insert a copy of the place into the index of each service in services; every copy holds
+    // the place's full bitmask, which the multi-service queries rely on to skip duplicates
+    private void addCopies(int x, int y, long services, long serviceBitmask, long[] highServiceWords) {
+        for (long remaining = indexed(services); remaining != 0; remaining &= remaining - 1) {
+            indexes[Long.numberOfTrailingZeros(remaining)].insert(new Place(x, y, serviceBitmask, highServiceWords));
+        }
+    }
+
+    // Bulk load: the places are split per service and each index is built with insertBatch
+    // highServiceWords is null when no place offers a service from 64 on
+    void addAll(int[] xs, int[] ys, long[] serviceBitmasks, long[][] highServiceWords, int length) {
+        int[] counts = new int[indexes.length];
+        for (int i = 0; i < length; i++) {
+            for (long remaining = indexed(serviceBitmasks[i]); remaining != 0; remaining &= remaining - 1) {
+                counts[Long.numberOfTrailingZeros(remaining)]++;
+            }
+        }
+        for (int s = 0; s < indexes.length; s++) {
+            if (counts[s] == 0) {
+                continue;
+            }
+            int[] serviceXs = new int[counts[s]];
+            int[] serviceYs = new int[counts[s]];
+            long[] serviceMasks = new long[counts[s]];
+            long[][] serviceHigh = highServiceWords == null ? null : new long[counts[s]][];
+            int filled = 0;
+            for (int i = 0; i < length; i++) {
+                if ((serviceBitmasks[i] & (1L << s)) != 0) {
+                    serviceXs[filled] = xs[i];
+                    serviceYs[filled] = ys[i];
+                    serviceMasks[filled] = serviceBitmasks[i];
+                    if (serviceHigh != null) {
+                        serviceHigh[filled] = highServiceWords[i];
+                    }
+                    filled++;
+                }
+            }
+            indexes[s].insertBatch(serviceXs, serviceYs, serviceMasks, serviceHigh, filled);
+        }
+    }
+
+    void remove(int x, int y, long serviceBitmask) {
+        for (long remaining = indexed(serviceBitmask); remaining != 0; remaining &= remaining - 1) {
+            indexes[Long.numberOfTrailingZeros(remaining)].removePlace(x, y);
+        }
+    }
+
+    // A place's services changed: update the copies it keeps and add or drop it per service
+    void setServices(int x, int y, long oldBitmask, long newBitmask, long[] newHighServiceWords) {
+        for (long remaining = indexed(oldBitmask & newBitmask); remaining != 0; remaining &= remaining - 1) {
+            indexes[Long.numberOfTrailingZeros(remaining)].updateServiceBitmask(x, y, newBitmask, newHighServiceWords);
+        }
+        remove(x, y, oldBitmask & ~newBitmask);
+        addCopies(x, y, newBitmask & ~oldBitmask, newBitmask, newHighServiceWords);
+    }
+
+    void move(int oldX, int oldY, int newX, int newY, long serviceBitmask) {
+        for (long remaining = indexed(serviceBitmask); remaining != 0; remaining &= remaining - 1) {
+            indexes[Long.numberOfTrailingZeros(remaining)].movePlace(oldX, oldY, newX, newY);
+        }
+    }
+
+    // Stream at most limit places offering any of the services to the visitor
+    // Returns the number of places handed to the visitor
+    int query(Shape range, long serviceBitmask, int limit, PlaceVisitor visitor) {
+        int[] visited = new int[1];
+        long reported = 0; // Services whose index has been fully visited
+        for (long remaining = indexed(serviceBitmask); remaining != 0 && visited[0] < limit; remaining &= remaining - 1) {
+            int service = Long.numberOfTrailingZeros(remaining);
+            long skip = reported;
+            boolean completed = indexes[service].query(range, null, (x, y, placeBitmask, placeHigh) -> {
+                if ((placeBitmask & skip) != 0) {
+                    return true; // Already reported by a lower service's index
+                }
+                visited[0]++;
+                return visitor.visit(x, y, placeBitmask, placeHigh) && visited[0] < limit;
+            });
+            if (!completed) {
+                break;
+            }
+            reported |= 1L << service;
+        }
+        return visited[0];
+    }
+
+    // Count the places inside the range offering any of the services
+    int count(Shape range, long serviceBitmask) {
+        int total = 0;
+        long reported = 0;
+        for (long remaining = indexed(serviceBitmask); remaining != 0; remaining &= remaining - 1) {
+            int service = Long.numberOfTrailingZeros(remaining);
+            if (reported == 0) {
+                total += indexes[service].count(range, null); // Answered from node sizes
+            } else {
+                long skip = reported;
+                int[] matched = new int[1];
+                indexes[service].query(range, null, (x, y, placeBitmask, placeHigh) -> {
+                    if ((placeBitmask & skip) == 0) {
+                        matched[0]++;
+                    }
+                    return true;
+                });
+                total += matched[0];
+            }
+            reported |= 1L << service;
+        }
+        return total;
+    }
+
+    // The bits of a bitmask that have an index
+    private long indexed(long serviceBitmask) {
+        return indexes.length >= Long.SIZE ? serviceBitmask : serviceBitmask & ((1L << indexes.length) - 1);
+    }
+}
@@ -0,0 +1,493 @@
+package map2D;
+
+import place.Place;
+import quadTree.QuadTree;
+import quadTree.ServicePredicate;
+import rectangle.Rectangle;
+import shape.Shape;
+import arrayList.ArrayList;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Map2D variant for multi-core writes: the map is split into a grid of shards, each an
+// independent QuadTree with its own batch buffer and writer thread. Additions are routed to
+// their shard's buffer and full buffers are handed to the shard's writer, so shards fill up
+// in parallel instead of funnelling through one tree. Queries fan out only to the shards
+// intersecting the search area, in parallel when there are several, and merge the results.
+//
+// Added places become visible once their shard's writer has inserted them; flush() waits for
+// every pending addition. Edits, removals and moves are applied on the calling thread after
+// the shard's pending additions, so they always see the places added before them.
+// A move into another shard holds both shards' write locks, so a lookup in either shard never
+// misses the place; a query spanning both shards reads them at different moments, though, and
+// running concurrently with such a move it may count the place in both shards or in neither.
+public class ShardedMap2D {
+    private static final int BATCH_SIZE = 10000;
+    private static final int QUEUED_BATCHES = 4;
+    private static final int PAGE_SIZE = 50;
+    private static final int MAP_WIDTH = 10000000;
+    private static final int MAP_HEIGHT = 10000000;
+    private static final int DEFAULT_GRID_SIZE = 4;
+    private static final Batch STOP = new Batch(0);
+
+    private final Rectangle boundary;
+    private final int columns;
+    private final int rows;
+    private final int shardWidth;
+    private final int shardHeight;
+    private final Shard[] shards; // Row-major
+
+    // Places waiting for a shard writer, as parallel arrays
+    private static final class Batch {
+        final int[] xs;
+        final int[] ys;
+        final long[] serviceBitmasks;
+        long[][] highServiceWords; // Allocated by the first place offering a service from 64 on
+        int length;
+
+        Batch(int capacity) {
+            xs = new int[capacity];
+            ys = new int[capacity];
+            serviceBitmasks = new long[capacity];
+        }
+    }
+
+    private static final class Shard {
+        final QuadTree tree;
+        // Queries read the tree under the read lock; the writer and edits take the write lock
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        final Thread writer;
+        // Guarded by this shard: the buffer being filled and the batch hand-over counters
+        // A batch is counted as submitted only once it is in the queue
+        Batch pending = new Batch(BATCH_SIZE);
+        long submitted;
+        long applied;
+        // Serializes hand-overs, so the submitted batches are always the first ones of the queue
+        final Object submitLock = new Object();
+        volatile Throwable failure;
+
+        Shard(Rectangle boundary, String name) {
+            tree = new QuadTree(boundary, 0);
+            tree.enablePointIndex(); // Edits and removals look places up by exact coordinates
+            writer = new Thread(this::runWriter, name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Writer thread body: insert every batch handed over until STOP
+        private void runWriter() {
+            try {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch == STOP) {
+                        return;
+                    }
+                    lock.writeLock().lock();
+                    try {
+                        tree.insertBatch(batch.xs, batch.ys, batch.serviceBitmasks, batch.highServiceWords, batch.length);
+                    } catch (Throwable t) {
+                        failure = t; // Surfaced to the next caller touching this shard
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    synchronized (this) {
+                        applied++;
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void checkFailure() {
+            Throwable t = failure;
+            if (t != null) {
+                throw new IllegalStateException("Shard writer failed", t);
+            }
+        }
+
+        // Append a place to the buffer, handing the buffer to the writer once it is full
+        void add(int x, int y, long serviceBitmask, long[] highServiceWords) {
+            Batch full = null;
+            synchronized (this) {
+                Batch batch = pending;
+                batch.xs[batch.length] = x;
+                batch.ys[batch.length] = y;
+                batch.serviceBitmasks[batch.length] = serviceBitmask;
+                if (highServiceWords != null) {
+                    if (batch.highServiceWords == null) {
+                        batch.highServiceWords = new long[batch.xs.length][];
+                    }
+                    batch.highServiceWords[batch.length] = highServiceWords;
+                }
+                if (++batch.length == BATCH_SIZE) {
+                    full = batch;
+                    pending = new Batch(BATCH_SIZE);
+                }
+            }
+            if (full != null) {
+                submit(full);
+            }
+        }
+
+        // Hand the places in [from, to) of the arrays to the writer as one batch
+        void addAll(int[] xs, int[] ys, long[] serviceBitmasks, long[][] highServiceWords, int from, int to) {
+            Batch batch = new Batch(to - from);
+            System.arraycopy(xs, from, batch.xs, 0, to - from);
+            System.arraycopy(ys, from, batch.ys, 0, to - from);
+            System.arraycopy(serviceBitmasks, from, batch.serviceBitmasks, 0, to - from);
+            if (highServiceWords != null) {
+                batch.highServiceWords = new long[to - from][];
+                System.arraycopy(highServiceWords, from, batch.highServiceWords, 0, to - from);
+            }
+            batch.length = to - from;
+            submit(batch);
+        }
+
+        // Blocks while the writer is QUEUED_BATCHES behind, which throttles the producers
+        private void submit(Batch batch) {
+            synchronized (submitLock) {
+                checkFailure();
+                try {
+                    queue.put(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while adding places", e);
+                }
+                synchronized (this) {
+                    submitted++;
+                }
+            }
+        }
+
+        // Hand over the partial buffer and wait until the writer inserted everything submitted
+        void flush() {
+            Batch partial = null;
+            long target;
+            synchronized (this) {
+                if (pending.length > 0) {
+                    partial = pending;
+                    pending = new Batch(BATCH_SIZE);
+                }
+            }
+            if (partial != null) {
+                submit(partial);
+            }
+            synchronized (this) {
+                target = submitted;
+                while (applied < target && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while flushing places", e);
+                    }
+                }
+            }
+            checkFailure();
+        }
+
+        void close() {
+            flush();
+            try {
+                queue.put(STOP);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Operation run on one shard while its read lock is held
+    private interface ShardQuery<T> {
+        T run(QuadTree tree);
+    }
+
+    public ShardedMap2D() {
+        this(new Rectangle(0, 0, MAP_WIDTH, MAP_HEIGHT), DEFAULT_GRID_SIZE, DEFAULT_GRID_SIZE);
+    }
+
+    // Split boundary into columns x rows shards; the last column and row absorb the remainder
+    public ShardedMap2D(Rectangle boundary, int columns, int rows) {
+        if (columns < 1 || rows < 1 || columns > boundary.getW() || rows > boundary.getH()) {
+            throw new IllegalArgumentException("Illegal shard grid: " + columns + "x" + rows);
+        }
+        this.boundary = boundary;
+        this.columns = columns;
+        this.rows = rows;
+        this.shardWidth = boundary.getW() / columns;
+        this.shardHeight = boundary.getH() / rows;
+        this.shards = new Shard[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = boundary.getX() + column * shardWidth;
+                int y = boundary.getY() + row * shardHeight;
+                int w = column == columns - 1 ? boundary.getX() + boundary.getW() - x : shardWidth;
+                int h = row == rows - 1 ? boundary.getY() + boundary.getH() - y : shardHeight;
+                shards[row * columns + column] = new Shard(new Rectangle(x, y, w, h),
+                        "map2d-shard-writer-" + (row * columns + column));
+            }
+        }
+    }
+
+    // Index of the shard owning (x, y); coordinates outside the map go to the nearest shard,
+    // whose tree rejects them like Map2D's tree does
+    private int shardIndex(int x, int y) {
+        int column = Math.min(columns - 1, Math.max(0, (x - boundary.getX()) / shardWidth));
+        int row = Math.min(rows - 1, Math.max(0, (y - boundary.getY()) / shardHeight));
+        return row * columns + column;
+    }
+
+    private Shard shardOf(int x, int y) {
+        return shards[shardIndex(x, y)];
+    }
+
+    // Add a place to the map
+    public void addPlace(int x, int y, long serviceBitmask) {
+        addPlace(x, y, serviceBitmask, null);
+    }
+
+    // Add a place offering services from 64 on, given as high service words (see Place)
+    public void addPlace(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        shardOf(x, y).add(x, y, serviceBitmask, Place.trimHighWords(highServiceWords));
+    }
+
+    // Add many places at once: the places are grouped by shard and each group goes to its
+    // shard's writer as one batch. The arrays are left unchanged
+    public void addPlaces(int[] xs, int[] ys, long[] serviceBitmasks, int length) {
+        addPlaces(xs, ys, serviceBitmasks, null, length);
+    }
+
+    // Same, with the high service words of each place (highServiceWords is null when no place
+    // offers a service from 64 on)
+    public void addPlaces(int[] xs, int[] ys, long[] serviceBitmasks, long[][] highServiceWords, int length) {
+        int[] shardOf = new int[length];
+        int[] starts = new int[shards.length + 1];
+        for (int i = 0; i < length; i++) {
+            shardOf[i] = shardIndex(xs[i], ys[i]);
+            starts[shardOf[i] + 1]++;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        // Counting sort by shard so every shard's places are contiguous
+        int[] sortedXs = new int[length];
+        int[] sortedYs = new int[length];
+        long[] sortedMasks = new long[length];
+        long[][] sortedHigh = highServiceWords == null ? null : new long[length][];
+        int[] next = starts.clone();
+        for (int i = 0; i < length; i++) {
+            int slot = next[shardOf[i]]++;
+            sortedXs[slot] = xs[i];
+            sortedYs[slot] = ys[i];
+            sortedMasks[slot] = serviceBitmasks[i];
+            if (sortedHigh != null) {
+                sortedHigh[slot] = Place.trimHighWords(highServiceWords[i]);
+            }
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (starts[s + 1] > starts[s]) {
+                shards[s].addAll(sortedXs, sortedYs, sortedMasks, sortedHigh, starts[s], starts[s + 1]);
+            }
+        }
+    }
+
+    // Wait until every place added so far has been inserted by the shard writers
+    public void flush() {
+        for (Shard shard : shards) {
+            shard.flush();
+        }
+    }
+
+    // Flush the pending places and stop the writer threads
+    public void close() {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    public int size() {
+        int total = 0;
+        for (Shard shard : shards) {
+            total += read(shard, QuadTree::size);
+        }
+        return total;
+    }
+
+    public Place findPlace(int x, int y) {
+        Shard shard = shardOf(x, y);
+        shard.flush();
+        return read(shard, tree -> tree.findPlace(x, y));
+    }
+
+    // Overwrite the services of the place at (x, y); returns false when there is no place there
+    public boolean setServices(int x, int y, long serviceBitmask) {
+        return setServices(x, y, serviceBitmask, null);
+    }
+
+    // Same, including the place's high service words (null when it offers no service from 64 on)
+    public boolean setServices(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        Shard shard = shardOf(x, y);
+        shard.flush();
+        shard.lock.writeLock().lock();
+        try {
+            return shard.tree.updateServiceBitmask(x, y, serviceBitmask, highServiceWords);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    // Remove the place at (x, y); returns false when there is no place there
+    public boolean removePlace(int x, int y) {
+        Shard shard = shardOf(x, y);
+        shard.flush();
+        shard.lock.writeLock().lock();
+        try {
+            return shard.tree.removePlace(x, y);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    // Move a place to new coordinates, keeping its services; a place crossing into another
+    // shard is removed from its old shard and inserted into the new one under both shards'
+    // write locks, taken in shard order so concurrent moves cannot deadlock
+    public boolean movePlace(int oldX, int oldY, int newX, int newY) {
+        // Apply Map2D's rule for the exclusive right and bottom edge of the map
+        if (newX == boundary.getX() + boundary.getW()) newX--;
+        if (newY == boundary.getY() + boundary.getH()) newY--;
+        if (!boundary.contains(newX, newY)) {
+            return false;
+        }
+        int fromIndex = shardIndex(oldX, oldY);
+        int toIndex = shardIndex(newX, newY);
+        Shard from = shards[fromIndex];
+        Shard to = shards[toIndex];
+        from.flush();
+        if (from == to) {
+            from.lock.writeLock().lock();
+            try {
+                return from.tree.movePlace(oldX, oldY, newX, newY);
+            } finally {
+                from.lock.writeLock().unlock();
+            }
+        }
+        to.flush();
+        Shard first = fromIndex < toIndex ? from : to;
+        Shard second = fromIndex < toIndex ? to : from;
+        first.lock.writeLock().lock();
+        second.lock.writeLock().lock();
+        try {
+            Place place = from.tree.findPlace(oldX, oldY);
+            if (place == null || !from.tree.removePlace(oldX, oldY)) {
+                return false;
+            }
+            return to.tree.insert(new Place(newX, newY, place.getServiceBitmask(), place.getHighServiceWords()));
+        } finally {
+            second.lock.writeLock().unlock();
+            first.lock.writeLock().unlock();
+        }
+    }
+
+    // Collect the places within the area and optional service filter from every shard it
+    // intersects, querying the shards in parallel
+    public ArrayList<Place> query(Shape area, Long serviceBitmask) {
+        ArrayList<Place> found = new ArrayList<>();
+        Object[] parts = fanOut(area, tree -> {
+            ArrayList<Place> shardFound = new ArrayList<>();
+            tree.query(area, shardFound, serviceBitmask);
+            return shardFound;
+        });
+        for (Object part : parts) {
+            if (part != null) {
+                @SuppressWarnings("unchecked")
+                ArrayList<Place> shardFound = (ArrayList<Place>) part;
+                found.addAll(shardFound);
+            }
+        }
+        return found;
+    }
+
+    // Count places within the area and optional service filter across the intersecting shards
+    public int count(Shape area, Long serviceBitmask) {
+        return sum(fanOut(area, tree -> tree.count(area, serviceBitmask)));
+    }
+
+    // Count places within the area satisfying a service predicate across the intersecting shards
+    public int countMatching(Shape area, ServicePredicate predicate) {
+        return sum(fanOut(area, tree -> tree.countMatching(area, predicate)));
+    }
+
+    // Display up to PAGE_SIZE places within the area and the total, like Map2D.search
+    public void search(Shape area, Long serviceBitmask) {
+        System.out.println("Displaying up to 50 places: ");
+        int[] shown = new int[1];
+        for (Shard shard : shards) {
+            if (shown[0] == PAGE_SIZE) {
+                break;
+            }
+            if (area.intersects(shard.tree.getBoundary())) {
+                shown[0] += read(shard, tree -> tree.query(area, serviceBitmask, PAGE_SIZE - shown[0], (x, y, services, high) -> {
+                    System.out.println(new Place(x, y, services, high));
+                    return true;
+                }));
+            }
+        }
+        System.out.println(count(area, serviceBitmask) + " places found!");
+    }
+
+    private static <T> T read(Shard shard, ShardQuery<T> query) {
+        shard.checkFailure();
+        shard.lock.readLock().lock();
+        try {
+            return query.run(shard.tree);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    // Run the query on every shard intersecting the area; shards are queried as fork-join tasks
+    // when more than one is involved. Entries for shards outside the area are null
+    private Object[] fanOut(Shape area, ShardQuery<?> query) {
+        Object[] results = new Object[shards.length];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[shards.length];
+        int intersecting = 0;
+        int last = -1;
+        for (int s = 0; s < shards.length; s++) {
+            if (area.intersects(shards[s].tree.getBoundary())) {
+                intersecting++;
+                last = s;
+            }
+        }
+        if (intersecting == 1) {
+            results[last] = read(shards[last], query);
+            return results;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (area.intersects(shards[s].tree.getBoundary())) {
+                Shard shard = shards[s];
+                tasks[s] = ForkJoinTask.adapt(() -> read(shard, query)).fork();
+            }
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (tasks[s] != null) {
+                results[s] = tasks[s].join();
+            }
+        }
+        return results;
+    }
+
+    private static int sum(Object[] counts) {
+        int total = 0;
+        for (Object count : counts) {
+            if (count != null) {
+                total += (Integer) count;
+            }
+        }
+        return total;
+    }
+}
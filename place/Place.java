@@ -5,14 +5,23 @@ import comparable.*;
 public class Place implements SpatialComparable<Place> {
     private int x; // Using float instead of double
     private int y; // Using float instead of double
-    private int serviceBitmask; // Using int directly for services, assuming bitmasking fits in int
+    private long serviceBitmask; // One bit per registered service type 0-63 (see ServiceRegistry)
+    // Services from 64 on: word w holds services 64 * (w + 1) to 64 * (w + 1) + 63. Null for a
+    // place offering none of them; never changed once set, so copies of a place can share it
+    private long[] highServiceWords;
 
-    public Place(int x, int y, int serviceBitmask) {
+    public Place(int x, int y, long serviceBitmask) {
         this.x = x;
         this.y = y;
         this.serviceBitmask = serviceBitmask;
     }
 
+    // The array is kept, not copied; trailing zero words are dropped
+    public Place(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        this(x, y, serviceBitmask);
+        this.highServiceWords = trimHighWords(highServiceWords);
+    }
+
     @Override
     public int compareTo(Place other) {
         int result = Integer.compare(this.x, other.x);
@@ -38,44 +47,100 @@ public class Place implements SpatialComparable<Place> {
         this.y = y;
     }
 
-    public int getServiceBitmask() {
+    public long getServiceBitmask() {
         return serviceBitmask;
     }
 
-    public void setServiceBitmask(int serviceBitmask) {
+    public void setServiceBitmask(long serviceBitmask) {
         this.serviceBitmask = serviceBitmask;
     }
 
+    public long[] getHighServiceWords() {
+        return highServiceWords;
+    }
+
     // This method now uses the bitmask to check service presence
     public String getServiceTypeNames() {
         StringBuilder sb = new StringBuilder();
-        int bitmask = this.serviceBitmask;
-        int index = 0;
-        while (bitmask != 0) {
-            if ((bitmask & 1) == 1) {
-                if (sb.length() > 0) {
-                    sb.append(", ");
+        int words = highServiceWords == null ? 1 : highServiceWords.length + 1;
+        for (int w = 0; w < words; w++) {
+            long bitmask = w == 0 ? this.serviceBitmask : highServiceWords[w - 1];
+            int index = w * Long.SIZE;
+            while (bitmask != 0) {
+                if ((bitmask & 1) == 1) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(ServiceRegistry.getServiceType(index));  // Fetch the service name using the index
                 }
-                sb.append(ServiceRegistry.getServiceType(index));  // Fetch the service name using the index
+                bitmask >>>= 1;
+                index++;
             }
-            bitmask >>>= 1;
-            index++;
         }
         return sb.toString();
     }
 
     // To toggle a service
     public void toggleService(int serviceIndex, boolean enable) {
-        if (enable) {
-            serviceBitmask |= (1 << serviceIndex); // Set bit to 1
+        if (serviceIndex >= Long.SIZE) {
+            highServiceWords = withHighService(highServiceWords, serviceIndex, enable);
+        } else if (enable) {
+            serviceBitmask |= (1L << serviceIndex); // Set bit to 1
         } else {
-            serviceBitmask &= ~(1 << serviceIndex); // Set bit to 0
+            serviceBitmask &= ~(1L << serviceIndex); // Set bit to 0
         }
     }
 
     // Check if a specific service is enabled
     public boolean isServiceEnabled(int serviceIndex) {
-        return (serviceBitmask & (1 << serviceIndex)) != 0;
+        return offers(serviceBitmask, highServiceWords, serviceIndex);
+    }
+
+    // Whether a bitmask and its high words include the service
+    public static boolean offers(long serviceBitmask, long[] highServiceWords, int serviceIndex) {
+        if (serviceIndex < Long.SIZE) {
+            return (serviceBitmask & (1L << serviceIndex)) != 0;
+        }
+        int word = serviceIndex / Long.SIZE - 1;
+        return highServiceWords != null && word < highServiceWords.length
+                && (highServiceWords[word] & (1L << serviceIndex)) != 0;
+    }
+
+    // High words with one service from 64 on set or cleared; returns a new array (null once no
+    // such service is left) and leaves the argument unchanged
+    public static long[] withHighService(long[] highServiceWords, int serviceIndex, boolean enable) {
+        int word = serviceIndex / Long.SIZE - 1;
+        int length = highServiceWords == null ? 0 : highServiceWords.length;
+        long[] changed = new long[Math.max(length, enable ? word + 1 : 0)];
+        if (length > 0) {
+            System.arraycopy(highServiceWords, 0, changed, 0, Math.min(length, changed.length));
+        }
+        if (enable) {
+            changed[word] |= 1L << serviceIndex;
+        } else if (word < changed.length) {
+            changed[word] &= ~(1L << serviceIndex);
+        }
+        return trimHighWords(changed);
+    }
+
+    // The words without trailing zero words, or null when none is left
+    public static long[] trimHighWords(long[] highServiceWords) {
+        if (highServiceWords == null) {
+            return null;
+        }
+        int length = highServiceWords.length;
+        while (length > 0 && highServiceWords[length - 1] == 0) {
+            length--;
+        }
+        if (length == highServiceWords.length) {
+            return highServiceWords;
+        }
+        if (length == 0) {
+            return null;
+        }
+        long[] trimmed = new long[length];
+        System.arraycopy(highServiceWords, 0, trimmed, 0, length);
+        return trimmed;
     }
 
     @Override
@@ -2,19 +2,75 @@ package place;
 
 public class ServiceRegistry {
 
-    // Static array containing all service types
-    private static final String[] serviceTypes = {
+    // Services 0-63 live in a place's one-long bitmask, which filters test with a single AND;
+    // services from 64 on go to extra mask words that only the places offering them carry
+    // (see Place). The limit bounds those words in memory, log records and files
+    public static final int MAX_SERVICE_TYPES = 1024;
+
+    // Service types every map starts with
+    private static final String[] defaultServiceTypes = {
             "Cafe", "Restaurant", "Gas Station", "Library", "Hospital",
             "School", "Store", "Park", "Hotel", "Gym"
     };
 
+    // Registered names with a hash table over them; replaced as a whole on registration so
+    // lookups never lock and always see a consistent table
+    private static volatile Table table = new Table(defaultServiceTypes, defaultServiceTypes.length);
+
+    // Immutable registry state: names in index order and an open-addressing table mapping the
+    // case-folded hash of a name to its index + 1 (0 marks an empty slot)
+    private static final class Table {
+        final String[] serviceTypes;
+        final int[] slots;
+
+        Table(String[] names, int count) {
+            serviceTypes = new String[count];
+            System.arraycopy(names, 0, serviceTypes, 0, count);
+            slots = new int[Integer.highestOneBit(Math.max(count, 2) - 1) << 2];
+            for (int i = 0; i < count; i++) {
+                int slot = foldedHash(serviceTypes[i]) & (slots.length - 1);
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & (slots.length - 1);
+                }
+                slots[slot] = i + 1;
+            }
+        }
+
+        int indexOf(String serviceName) {
+            int slot = foldedHash(serviceName) & (slots.length - 1);
+            while (slots[slot] != 0) {
+                int index = slots[slot] - 1;
+                if (serviceTypes[index].equalsIgnoreCase(serviceName)) {
+                    return index;
+                }
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            return -1;
+        }
+    }
+
+    // Hash that agrees with equalsIgnoreCase: names differing only in case hash the same
+    private static int foldedHash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = hash * 31 + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
     // Method to get the entire list of service types (avoiding collections)
     public static String[] getServiceTypes() {
-        return serviceTypes.clone(); // Return a copy to avoid modification
+        return table.serviceTypes.clone(); // Return a copy to avoid modification
+    }
+
+    // Number of registered service types; indexes run from 0 to this count - 1
+    public static int getServiceTypeCount() {
+        return table.serviceTypes.length;
     }
 
     // Method to get a specific service type by index
     public static String getServiceType(int index) {
+        String[] serviceTypes = table.serviceTypes;
         if (index >= 0 && index < serviceTypes.length) {
             return serviceTypes[index];
         } else {
@@ -22,13 +78,39 @@ public class ServiceRegistry {
         }
     }
 
-    // Method to find the index of a service type by name
+    // Method to find the index of a service type by name (case-insensitive)
     public static int getServiceTypeIndex(String serviceName) {
-        for (int i = 0; i < serviceTypes.length; i++) {
-            if (serviceTypes[i].equalsIgnoreCase(serviceName)) { 
-                return i;
-           }
-        }
-        throw new IllegalArgumentException("Service type not found: " + serviceName);
-     }
-}
\ No newline at end of file
+        int index = table.indexOf(serviceName);
+        if (index < 0) {
+            throw new IllegalArgumentException("Service type not found: " + serviceName);
+        }
+        return index;
+    }
+
+    // Index of a service type by name (case-insensitive), or -1 when it is not registered
+    public static int findServiceTypeIndex(String serviceName) {
+        return table.indexOf(serviceName);
+    }
+
+    // Register a new service type at runtime and return its index; registering a name that
+    // already exists returns the existing index
+    public static synchronized int registerServiceType(String serviceName) {
+        if (serviceName == null || serviceName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Service type name is empty");
+        }
+        Table current = table;
+        int index = current.indexOf(serviceName);
+        if (index >= 0) {
+            return index;
+        }
+        int count = current.serviceTypes.length;
+        if (count == MAX_SERVICE_TYPES) {
+            throw new IllegalStateException("Cannot register more than " + MAX_SERVICE_TYPES + " service types");
+        }
+        String[] names = new String[count + 1];
+        System.arraycopy(current.serviceTypes, 0, names, 0, count);
+        names[count] = serviceName;
+        table = new Table(names, count + 1);
+        return count;
+    }
+}
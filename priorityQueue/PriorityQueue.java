@@ -0,0 +1,107 @@
+package priorityQueue;
+
+// Binary min-heap ordered by a long priority, smallest priority first
+public class PriorityQueue<T> {
+    private long[] priorities;
+    private Object[] elements;
+    private int size = 0;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    public PriorityQueue() {
+        priorities = new long[DEFAULT_CAPACITY];
+        elements = new Object[DEFAULT_CAPACITY];
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > elements.length) {
+            int newCapacity = Math.max(minCapacity, elements.length + (elements.length >> 1));
+            long[] newPriorities = new long[newCapacity];
+            Object[] newElements = new Object[newCapacity];
+            System.arraycopy(priorities, 0, newPriorities, 0, size);
+            System.arraycopy(elements, 0, newElements, 0, size);
+            priorities = newPriorities;
+            elements = newElements;
+        }
+    }
+
+    public void add(long priority, T element) {
+        ensureCapacity(size + 1);
+        // Sift up: move parents down until the new entry's slot is found
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            priorities[index] = priorities[parent];
+            elements[index] = elements[parent];
+            index = parent;
+        }
+        priorities[index] = priority;
+        elements[index] = element;
+    }
+
+    public long peekPriority() {
+        if (size == 0) {
+            throw new IllegalStateException("Queue is empty");
+        }
+        return priorities[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        if (size == 0) {
+            throw new IllegalStateException("Queue is empty");
+        }
+        return (T) elements[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if (size == 0) {
+            throw new IllegalStateException("Queue is empty");
+        }
+        T result = (T) elements[0];
+        size--;
+        long lastPriority = priorities[size];
+        Object lastElement = elements[size];
+        elements[size] = null; // Clear the reference to the moved element
+
+        // Sift down: move the smaller child up until the last entry's slot is found
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && priorities[right] < priorities[child]) {
+                child = right;
+            }
+            if (lastPriority <= priorities[child]) {
+                break;
+            }
+            priorities[index] = priorities[child];
+            elements[index] = elements[child];
+            index = child;
+        }
+        if (size > 0) {
+            priorities[index] = lastPriority;
+            elements[index] = lastElement;
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            elements[i] = null;
+        }
+        size = 0;
+    }
+}
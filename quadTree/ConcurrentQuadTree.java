@@ -0,0 +1,424 @@
+package quadTree;
+
+import place.Place;
+import rectangle.Rectangle;
+import shape.Shape;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import arrayList.ArrayList;
+
+// Thread-safe variant of QuadTree for serving searches while edits come in.
+// Readers never block writers: each leaf is read under an optimistic StampedLock stamp and only
+// re-read under a read lock if a writer changed it meanwhile. Writers descend without locking and
+// only write-lock the leaf they change (plus the parent and its children when merging).
+// A split builds the children completely before publishing them through a volatile field, and a
+// merge retires the old children so late writers restart while late readers still see their
+// last contents.
+public class ConcurrentQuadTree {
+    private static final int INITIAL_CAPACITY = 10;
+    private static final int MAX_DEPTH = 32;
+    private final Node root;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public ConcurrentQuadTree(Rectangle boundary) {
+        this.root = new Node(boundary, 0, null);
+    }
+
+    private static final class Node {
+        private final Rectangle boundary;
+        private final int depth;
+        private final Node parent;
+        private final StampedLock lock = new StampedLock();
+        // Children in northeast, northwest, southeast, southwest order; null while this is a leaf
+        private volatile Node[] children;
+        // Set when this node was merged into its parent and must no longer be written
+        private volatile boolean retired;
+        // OR of the service bitmasks below this node; bits may be stale after removals, which
+        // only costs some pruning, never a missed result
+        private final AtomicLong serviceSummary = new AtomicLong();
+        // Leaf points, guarded by lock
+        private int[] xs;
+        private int[] ys;
+        private long[] serviceBitmasks;
+        // High service words (see Place); allocated by the first point offering a service from 64 on
+        private long[][] highServiceWords;
+        private int count;
+
+        Node(Rectangle boundary, int depth, Node parent) {
+            this.boundary = boundary;
+            this.depth = depth;
+            this.parent = parent;
+        }
+
+        int capacity() {
+            return INITIAL_CAPACITY + (int) (Math.log(depth + 1) * INITIAL_CAPACITY);
+        }
+
+        boolean canSplit() {
+            return depth < MAX_DEPTH && (boundary.getW() > 1 || boundary.getH() > 1);
+        }
+
+        int quadrant(int px, int py) {
+            boolean rightHalf = px >= boundary.getX() + boundary.getW() / 2;
+            boolean topHalf = py < boundary.getY() + boundary.getH() / 2;
+            if (rightHalf) {
+                return topHalf ? 0 : 2;
+            }
+            return topHalf ? 1 : 3;
+        }
+
+        void append(int px, int py, long serviceBitmask, long[] high) {
+            if (xs == null) {
+                xs = new int[capacity()];
+                ys = new int[capacity()];
+                serviceBitmasks = new long[capacity()];
+            } else if (count == xs.length) {
+                int newCapacity = xs.length + (xs.length >> 1) + 1;
+                int[] newXs = new int[newCapacity];
+                int[] newYs = new int[newCapacity];
+                long[] newMasks = new long[newCapacity];
+                System.arraycopy(xs, 0, newXs, 0, count);
+                System.arraycopy(ys, 0, newYs, 0, count);
+                System.arraycopy(serviceBitmasks, 0, newMasks, 0, count);
+                xs = newXs;
+                ys = newYs;
+                serviceBitmasks = newMasks;
+                if (highServiceWords != null) {
+                    long[][] newHigh = new long[newCapacity][];
+                    System.arraycopy(highServiceWords, 0, newHigh, 0, count);
+                    highServiceWords = newHigh;
+                }
+            }
+            xs[count] = px;
+            ys[count] = py;
+            serviceBitmasks[count] = serviceBitmask;
+            if (high != null && highServiceWords == null) {
+                highServiceWords = new long[xs.length][];
+            }
+            if (highServiceWords != null) {
+                highServiceWords[count] = high;
+            }
+            count++;
+            orSummary(serviceBitmask);
+        }
+
+        long[] highAt(int slot) {
+            return highServiceWords == null ? null : highServiceWords[slot];
+        }
+
+        int indexOf(int px, int py) {
+            for (int i = 0; i < count; i++) {
+                if (xs[i] == px && ys[i] == py) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void orSummary(long serviceBitmask) {
+            long current;
+            do {
+                current = serviceSummary.get();
+            } while ((current | serviceBitmask) != current
+                    && !serviceSummary.compareAndSet(current, current | serviceBitmask));
+        }
+
+        void recomputeSummary() {
+            long summary = 0;
+            for (int i = 0; i < count; i++) {
+                summary |= serviceBitmasks[i];
+            }
+            serviceSummary.set(summary);
+        }
+
+        // Split this leaf (write-locked by the caller) and publish the fully built children
+        void split() {
+            int halfWidth = boundary.getW() / 2;
+            int halfHeight = boundary.getH() / 2;
+            int x = boundary.getX();
+            int y = boundary.getY();
+            int eastWidth = boundary.getW() - halfWidth;
+            int southHeight = boundary.getH() - halfHeight;
+            Node[] built = {
+                    new Node(new Rectangle(x + halfWidth, y, eastWidth, halfHeight), depth + 1, this),
+                    new Node(new Rectangle(x, y, halfWidth, halfHeight), depth + 1, this),
+                    new Node(new Rectangle(x + halfWidth, y + halfHeight, eastWidth, southHeight), depth + 1, this),
+                    new Node(new Rectangle(x, y + halfHeight, halfWidth, southHeight), depth + 1, this)
+            };
+            for (int i = 0; i < count; i++) {
+                built[quadrant(xs[i], ys[i])].append(xs[i], ys[i], serviceBitmasks[i], highAt(i));
+            }
+            children = built; // Volatile write: readers see the children only once they are complete
+            xs = null;
+            ys = null;
+            serviceBitmasks = null;
+            highServiceWords = null;
+            count = 0;
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public Rectangle getBoundary() {
+        return root.boundary;
+    }
+
+    public boolean insert(Place point) {
+        return insert(point.getX(), point.getY(), point.getServiceBitmask(), point.getHighServiceWords());
+    }
+
+    public boolean insert(int x, int y, long serviceBitmask) {
+        return insert(x, y, serviceBitmask, null);
+    }
+
+    // Insert a place offering services from 64 on, given as high service words (see Place)
+    // The summaries only cover the first word, which is all the service filters here test
+    public boolean insert(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        long[] high = Place.trimHighWords(highServiceWords);
+        if (!root.boundary.contains(x, y)) {
+            return false;
+        }
+        Node start = root;
+        while (true) {
+            Node leaf = descend(start, x, y, serviceBitmask);
+            long stamp = leaf.lock.writeLock();
+            try {
+                if (leaf.retired) {
+                    start = root; // Merged away while we were descending: start over
+                    continue;
+                }
+                if (leaf.children != null) {
+                    start = leaf; // Split meanwhile: continue into the new children
+                    continue;
+                }
+                if (leaf.count >= leaf.capacity() && leaf.canSplit()) {
+                    leaf.split();
+                    start = leaf;
+                    continue;
+                }
+                leaf.append(x, y, serviceBitmask, high);
+                size.incrementAndGet();
+                return true;
+            } finally {
+                leaf.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // Walk down through published children without locking, OR-ing the bitmask into the summaries
+    private Node descend(Node node, int x, int y, long serviceBitmask) {
+        Node[] children;
+        while ((children = node.children) != null) {
+            node.orSummary(serviceBitmask);
+            node = children[node.quadrant(x, y)];
+        }
+        return node;
+    }
+
+    public boolean removePlace(int x, int y) {
+        while (true) {
+            Node leaf = descend(root, x, y, 0);
+            long stamp = leaf.lock.writeLock();
+            boolean sparse;
+            try {
+                if (leaf.retired || leaf.children != null) {
+                    continue;
+                }
+                int slot = leaf.indexOf(x, y);
+                if (slot < 0) {
+                    return false;
+                }
+                // Order inside a leaf does not matter: move the last point into the gap
+                int last = leaf.count - 1;
+                leaf.xs[slot] = leaf.xs[last];
+                leaf.ys[slot] = leaf.ys[last];
+                leaf.serviceBitmasks[slot] = leaf.serviceBitmasks[last];
+                if (leaf.highServiceWords != null) {
+                    leaf.highServiceWords[slot] = leaf.highServiceWords[last];
+                    leaf.highServiceWords[last] = null;
+                }
+                leaf.count = last;
+                leaf.recomputeSummary();
+                size.decrementAndGet();
+                sparse = leaf.count <= leaf.capacity() / 4;
+            } finally {
+                leaf.lock.unlockWrite(stamp);
+            }
+            if (sparse && leaf.parent != null) {
+                tryMerge(leaf.parent);
+            }
+            return true;
+        }
+    }
+
+    // The place then offers no service from 64 on
+    public boolean updateServiceBitmask(int x, int y, long serviceBitmask) {
+        return updateServiceBitmask(x, y, serviceBitmask, null);
+    }
+
+    // Overwrite the services of the place at (x, y), including its high service words
+    public boolean updateServiceBitmask(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        long[] high = Place.trimHighWords(highServiceWords);
+        while (true) {
+            Node leaf = descend(root, x, y, serviceBitmask);
+            long stamp = leaf.lock.writeLock();
+            try {
+                if (leaf.retired || leaf.children != null) {
+                    continue;
+                }
+                int slot = leaf.indexOf(x, y);
+                if (slot < 0) {
+                    return false;
+                }
+                leaf.serviceBitmasks[slot] = serviceBitmask;
+                if (high != null && leaf.highServiceWords == null) {
+                    leaf.highServiceWords = new long[leaf.xs.length][];
+                }
+                if (leaf.highServiceWords != null) {
+                    leaf.highServiceWords[slot] = high;
+                }
+                leaf.recomputeSummary();
+                return true;
+            } finally {
+                leaf.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // Collapse the children of node into it once they are all leaves holding few enough points,
+    // then try the same one level up. Child locks are only tried, never waited for, so writers
+    // holding a leaf lock can never deadlock with a merge
+    private void tryMerge(Node node) {
+        while (node != null) {
+            long stamp = node.lock.writeLock();
+            Node[] children = node.children;
+            long[] childStamps = new long[4];
+            boolean merged = false;
+            try {
+                if (node.retired || children == null) {
+                    return;
+                }
+                int locked = 0;
+                try {
+                    for (; locked < children.length; locked++) {
+                        childStamps[locked] = children[locked].lock.tryWriteLock();
+                        if (childStamps[locked] == 0) {
+                            return; // A writer is busy below, it can merge later
+                        }
+                    }
+                    int total = 0;
+                    for (Node child : children) {
+                        if (child.children != null) {
+                            return;
+                        }
+                        total += child.count;
+                    }
+                    if (total > node.capacity()) {
+                        return;
+                    }
+                    for (Node child : children) {
+                        for (int i = 0; i < child.count; i++) {
+                            node.append(child.xs[i], child.ys[i], child.serviceBitmasks[i], child.highAt(i));
+                        }
+                        child.retired = true; // Contents stay intact for readers already inside
+                    }
+                    node.recomputeSummary();
+                    node.children = null;
+                    merged = true;
+                } finally {
+                    for (int i = 0; i < locked; i++) {
+                        children[i].lock.unlockWrite(childStamps[i]);
+                    }
+                }
+            } finally {
+                node.lock.unlockWrite(stamp);
+            }
+            if (!merged) {
+                return;
+            }
+            node = node.parent;
+        }
+    }
+
+    public Place findPlace(int x, int y) {
+        ArrayList<Place> found = new ArrayList<>();
+        query(new Rectangle(x, y, 1, 1), found, null);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    public void query(Shape range, ArrayList<Place> found, Long serviceBitmask) {
+        query(root, range, found, serviceBitmask);
+    }
+
+    private void query(Node node, Shape range, ArrayList<Place> found, Long serviceBitmask) {
+        if (!range.intersects(node.boundary))
+            return;
+        if (serviceBitmask != null && (node.serviceSummary.get() & serviceBitmask) == 0)
+            return;
+        Node[] children = node.children;
+        if (children == null) {
+            if (!readLeaf(node, range, found, serviceBitmask)) {
+                // The leaf was split under us, its children are published now
+                children = node.children;
+            }
+        }
+        if (children != null) {
+            for (Node child : children) {
+                query(child, range, found, serviceBitmask);
+            }
+        }
+    }
+
+    // Scan a leaf into a private buffer under an optimistic stamp and only hand the results over
+    // once the stamp validates; on contention fall back to a read lock
+    // Returns false if the node turned out to be divided
+    private boolean readLeaf(Node node, Shape range, ArrayList<Place> found, Long serviceBitmask) {
+        long stamp = node.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            ArrayList<Place> buffer = new ArrayList<>();
+            if (node.children == null) {
+                scanLeaf(node, range, buffer, serviceBitmask);
+                if (node.lock.validate(stamp)) {
+                    found.addAll(buffer);
+                    return true;
+                }
+            } else if (node.lock.validate(stamp)) {
+                return false;
+            }
+        }
+        stamp = node.lock.readLock();
+        try {
+            if (node.children != null) {
+                return false;
+            }
+            scanLeaf(node, range, found, serviceBitmask);
+            return true;
+        } finally {
+            node.lock.unlockRead(stamp);
+        }
+    }
+
+    // Reads may race with a writer during the optimistic phase, so every array access is bounded
+    // by the arrays actually read; the caller discards the result if the stamp fails
+    private void scanLeaf(Node node, Shape range, ArrayList<Place> found, Long serviceBitmask) {
+        int[] xs = node.xs;
+        int[] ys = node.ys;
+        long[] masks = node.serviceBitmasks;
+        long[][] high = node.highServiceWords;
+        if (xs == null || ys == null || masks == null) {
+            return;
+        }
+        int limit = Math.min(node.count, Math.min(xs.length, Math.min(ys.length, masks.length)));
+        for (int i = 0; i < limit; i++) {
+            if (range.contains(xs[i], ys[i])
+                    && (serviceBitmask == null || (masks[i] & serviceBitmask) != 0)) {
+                found.add(new Place(xs[i], ys[i], masks[i], high == null || i >= high.length ? null : high[i]));
+            }
+        }
+    }
+}
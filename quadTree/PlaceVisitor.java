@@ -0,0 +1,8 @@
+package quadTree;
+
+// Callback receiving the places matched by a streaming QuadTree query
+public interface PlaceVisitor {
+    // Called once per matching place with its services (highServiceWords is null unless the
+    // place offers services from 64 on, see Place); return false to stop the traversal
+    boolean visit(int x, int y, long serviceBitmask, long[] highServiceWords);
+}
@@ -0,0 +1,116 @@
+package quadTree;
+
+// Open-addressing hash from a packed (x, y) coordinate to the QuadTree leaf holding it.
+// Keys live in a primitive long[] with linear probing and backward-shift deletion, so lookups
+// allocate nothing. Entries are hints: the tree re-checks the leaf and falls back to a descent
+// when an entry is missing or stale.
+class PointIndex {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private long[] keys;
+    private QuadTree[] leaves; // null marks an empty slot
+    private int size;
+    private int mask;
+
+    PointIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PointIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, expectedSize + (expectedSize >> 1)) - 1) << 1;
+        keys = new long[capacity];
+        leaves = new QuadTree[capacity];
+        mask = capacity - 1;
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    QuadTree get(int x, int y) {
+        long key = pack(x, y);
+        for (int i = slot(key); leaves[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return leaves[i];
+            }
+        }
+        return null;
+    }
+
+    void put(int x, int y, QuadTree leaf) {
+        long key = pack(x, y);
+        int i = slot(key);
+        while (leaves[i] != null) {
+            if (keys[i] == key) {
+                leaves[i] = leaf;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        leaves[i] = leaf;
+        size++;
+        if (size > (keys.length >> 1) + (keys.length >> 2)) { // Keep the load factor under 0.75
+            resize(keys.length << 1);
+        }
+    }
+
+    void remove(int x, int y) {
+        long key = pack(x, y);
+        int i = slot(key);
+        while (leaves[i] != null) {
+            if (keys[i] == key) {
+                deleteSlot(i);
+                size--;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Backward-shift deletion: pull later entries of the probe run into the gap so no tombstones are needed
+    private void deleteSlot(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (leaves[i] == null) {
+                break;
+            }
+            int home = slot(keys[i]);
+            // Move the entry if its home slot is not between the gap and its current slot (cyclically)
+            boolean movable = gap <= i ? (home <= gap || home > i) : (home <= gap && home > i);
+            if (movable) {
+                keys[gap] = keys[i];
+                leaves[gap] = leaves[i];
+                gap = i;
+            }
+        }
+        leaves[gap] = null;
+    }
+
+    private void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        QuadTree[] oldLeaves = leaves;
+        keys = new long[newCapacity];
+        leaves = new QuadTree[newCapacity];
+        mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldLeaves[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (leaves[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                leaves[j] = oldLeaves[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -3,170 +3,1529 @@ package quadTree;
 import place.Place;
 import place.ServiceRegistry;
 import rectangle.*;
+import shape.Shape;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import arrayList.ArrayList;
-import iterable.Iterator;
+import priorityQueue.PriorityQueue;
 
 public class QuadTree {
     private static final int INITIAL_CAPACITY = 10;
+    // Nodes at this depth never split; together with the 1x1 cell limit this bounds every descent
+    private static final int MAX_DEPTH = 24;
+    // Marks a removed slot in lazy removal mode until the leaf is compacted
+    private static final int TOMBSTONE = Integer.MIN_VALUE;
+    // Lazy removal compacts the tree once this many tombstones (and a quarter of the size) piled up
+    private static final int MIN_TOMBSTONES_BEFORE_COMPACTION = 1024;
+    // Batch slices smaller than this are built sequentially by insertBatchParallel
+    private static final int PARALLEL_BUILD_GRANULARITY = 50_000;
+    // Subtrees with fewer places than this are queried sequentially by queryParallel
+    private static final int PARALLEL_QUERY_THRESHOLD = 100_000;
+    // Snapshot file header
+    private static final int SNAPSHOT_MAGIC = 0x51545245; // "QTRE"
+    private static final int SNAPSHOT_VERSION = 3;
+    // Oldest version still read; version 2 snapshots have no high service words
+    private static final int SNAPSHOT_MIN_VERSION = 2;
+    // Most high service words a place can have, given the registry's limit
+    private static final int MAX_HIGH_WORDS = ServiceRegistry.MAX_SERVICE_TYPES / Long.SIZE - 1;
+    private static final int SNAPSHOT_POINT_INDEX = 1;
+    // Node record tag for a divided node; a leaf record holds its point count instead
+    private static final int SNAPSHOT_DIVIDED = -1;
     private Rectangle boundary;
-    private ArrayList<Place> points;
+    // Leaf points are kept as parallel primitive arrays (structure of arrays) instead of
+    // Place objects; Place instances are only created when results are handed back
+    private int[] xs;
+    private int[] ys;
+    private long[] serviceBitmasks;
+    // High service words of the leaf points (see Place); null until a point offering a service
+    // from 64 on is stored here, after which points without any hold null
+    private long[][] highServiceWords;
+    private int count;
+    private int tombstones; // Removed slots still occupying the leaf arrays
+    // Subtree statistics: number of places, OR of their service bitmasks and, on divided
+    // nodes, how many places offer each service (leaves recompute theirs from the arrays)
+    // Services from 64 on have their own OR per high word (null while no place offers one) and
+    // counts kept per high word, so a node only pays for the words its places use
+    private int size;
+    private long serviceSummary;
+    private int[] serviceCounts;
+    private long[] highServiceSummary;
+    private int[][] highServiceCounts;
     private boolean divided;
     private QuadTree northeast, northwest, southeast, southwest;
+    private QuadTree parent;
     private int depth;
+    // Leaf capacity: grows with depth, and doubles for leaves acting as overflow buckets
+    // Divided nodes use it as their merge threshold and always hold the depth-based value
+    private int capacity;
+    // Bumped whenever a place in this subtree is added, removed or changed, and when the node
+    // is merged away, so results computed from the subtree can be checked for staleness
+    private long generation;
+    // Optional coordinate -> leaf index shared by every node of the tree (null when disabled)
+    private PointIndex pointIndex;
+    // Optional instrumentation shared by every node of the tree (null when disabled)
+    private QuadTreeMetrics metrics;
+    // Root only: removals leave tombstones for a later compaction instead of repacking leaves
+    private boolean lazyRemoval;
+    private int pendingTombstones;
+    // Root only: caller-defined number read from the snapshot this tree was loaded from
+    private long snapshotStamp;
 
     public QuadTree(Rectangle boundary, int depth) {
         this.boundary = boundary;
-        this.points = new ArrayList<>();
         this.divided = false;
         this.depth = depth;
+        this.capacity = baseCapacity(depth);
+    }
+
+    // Leaf capacity before any overflow: grows logarithmically with depth
+    private static int baseCapacity(int depth) {
+        return INITIAL_CAPACITY + (int) (Math.log(depth + 1) * INITIAL_CAPACITY);
     }
 
     public Rectangle getBoundary() {
         return boundary;
     }
 
-    private int getCurrentCapacity() {
-        return INITIAL_CAPACITY + (int) (Math.log(depth + 1) * INITIAL_CAPACITY);
+    // Modification counter of this subtree; unchanged means no place inside it changed
+    public long getGeneration() {
+        return generation;
+    }
+
+    // Nodes of this subtree whose generations together cover every place the area can match:
+    // starting from this node, nodes straddling the area's border are replaced by their children
+    // intersecting it for as long as at most limit nodes result. A change outside all of them
+    // cannot affect a query of the area, however the area is placed relative to the midlines
+    public QuadTree[] getCoveringNodes(Rectangle area, int limit) {
+        if (!area.intersects(boundary)) {
+            return new QuadTree[0];
+        }
+        QuadTree[] nodes = new QuadTree[Math.max(limit, 1)];
+        nodes[0] = this;
+        int length = 1;
+        // Children are appended at the end, so nodes are refined roughly level by level
+        for (int i = 0; i < length; i++) {
+            QuadTree node = nodes[i];
+            if (!node.divided || area.containsRectangle(node.boundary)) {
+                continue; // A node inside the area is touched by the query as a whole
+            }
+            QuadTree[] children = {node.northeast, node.northwest, node.southeast, node.southwest};
+            int intersecting = 0;
+            for (QuadTree child : children) {
+                if (area.intersects(child.boundary)) {
+                    intersecting++;
+                }
+            }
+            if (length - 1 + intersecting > nodes.length) {
+                continue;
+            }
+            nodes[i] = nodes[--length];
+            for (QuadTree child : children) {
+                if (area.intersects(child.boundary)) {
+                    nodes[length++] = child;
+                }
+            }
+            i--; // The node moved into this slot has not been looked at yet
+        }
+        QuadTree[] covering = new QuadTree[length];
+        System.arraycopy(nodes, 0, covering, 0, length);
+        return covering;
+    }
+
+    // Helper method to bump the generation of this node and all of its ancestors
+    private void touch() {
+        for (QuadTree node = this; node != null; node = node.parent) {
+            node.generation++;
+        }
+    }
+
+    // Number of places stored in this subtree
+    public int size() {
+        return size;
+    }
+
+    // Number of places in this subtree that offer the given service
+    public int getServiceCount(int serviceIndex) {
+        if (!divided) {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                if (Place.offers(serviceBitmasks[i], highAt(i), serviceIndex)) {
+                    total++;
+                }
+            }
+            return total;
+        }
+        if (serviceIndex >= Long.SIZE) {
+            int word = serviceIndex / Long.SIZE - 1;
+            return highServiceCounts != null && word < highServiceCounts.length && highServiceCounts[word] != null
+                    ? highServiceCounts[word][serviceIndex % Long.SIZE] : 0;
+        }
+        return serviceCounts != null && serviceIndex < serviceCounts.length ? serviceCounts[serviceIndex] : 0;
+    }
+
+    private int getCurrentCapacity() {
+        return capacity;
+    }
+
+    // Helper method to tell whether splitting this node can separate its places: the depth
+    // limit is not reached and the cell is wider or taller than one unit
+    private boolean canSubdivide() {
+        return depth < MAX_DEPTH && (boundary.getW() > 1 || boundary.getH() > 1);
+    }
+
+    // Helper method to check whether every live place of this leaf and the points in [from, to)
+    // share a single coordinate, in which case no split can ever separate them
+    private boolean isColocated(int[] bx, int[] by, int from, int to) {
+        if (from == to) {
+            return true; // Only used with a non-empty batch
+        }
+        for (int i = from + 1; i < to; i++) {
+            if (bx[i] != bx[from] || by[i] != by[from]) {
+                return false;
+            }
+        }
+        return isColocated(bx[from], by[from]);
+    }
+
+    // Helper method to check whether every live place of this leaf sits at (x, y)
+    private boolean isColocated(int x, int y) {
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (xs[i] != x || ys[i] != y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Grow the leaf arrays so they can hold at least minCapacity points
+    private void ensureLeafCapacity(int minCapacity) {
+        if (xs == null) {
+            int initial = Math.max(minCapacity, Math.min(INITIAL_CAPACITY, getCurrentCapacity()));
+            xs = new int[initial];
+            ys = new int[initial];
+            serviceBitmasks = new long[initial];
+        } else if (minCapacity > xs.length) {
+            int newCapacity = Math.max(minCapacity, xs.length + (xs.length >> 1));
+            int[] newXs = new int[newCapacity];
+            int[] newYs = new int[newCapacity];
+            long[] newMasks = new long[newCapacity];
+            System.arraycopy(xs, 0, newXs, 0, count);
+            System.arraycopy(ys, 0, newYs, 0, count);
+            System.arraycopy(serviceBitmasks, 0, newMasks, 0, count);
+            xs = newXs;
+            ys = newYs;
+            serviceBitmasks = newMasks;
+            if (highServiceWords != null) {
+                long[][] newHigh = new long[newCapacity][];
+                System.arraycopy(highServiceWords, 0, newHigh, 0, count);
+                highServiceWords = newHigh;
+            }
+        }
+    }
+
+    private void appendPoint(int x, int y, long serviceBitmask, long[] high) {
+        ensureLeafCapacity(count + 1);
+        xs[count] = x;
+        ys[count] = y;
+        serviceBitmasks[count] = serviceBitmask;
+        setHighAt(count, high);
+        count++;
+        size++;
+        serviceSummary |= serviceBitmask;
+        if (high != null) {
+            highServiceSummary = orInto(highServiceSummary, high);
+        }
+    }
+
+    // High service words of the leaf point in slot, null when it offers no service from 64 on
+    private long[] highAt(int slot) {
+        return highServiceWords == null ? null : highServiceWords[slot];
+    }
+
+    private void setHighAt(int slot, long[] high) {
+        if (high != null && highServiceWords == null) {
+            highServiceWords = new long[xs.length][];
+        }
+        if (highServiceWords != null) {
+            highServiceWords[slot] = high;
+        }
+    }
+
+    // OR words into summary, growing (or creating) the summary as needed; returns the summary
+    private static long[] orInto(long[] summary, long[] words) {
+        if (summary == null || summary.length < words.length) {
+            long[] grown = new long[words.length];
+            if (summary != null) {
+                System.arraycopy(summary, 0, grown, 0, summary.length);
+            }
+            summary = grown;
+        }
+        for (int w = 0; w < words.length; w++) {
+            summary[w] |= words[w];
+        }
+        return summary;
+    }
+
+    // Add delta to the per-service counts of every service in the bitmask, keeping the
+    // aggregated summary in sync (a service bit is cleared once no place offers it)
+    private void addServiceCounts(long serviceBitmask, int delta) {
+        if (serviceBitmask == 0) {
+            return;
+        }
+        int needed = 64 - Long.numberOfLeadingZeros(serviceBitmask);
+        if (serviceCounts == null || serviceCounts.length < needed) {
+            int[] grown = new int[needed];
+            if (serviceCounts != null) {
+                System.arraycopy(serviceCounts, 0, grown, 0, serviceCounts.length);
+            }
+            serviceCounts = grown;
+        }
+        long remaining = serviceBitmask;
+        while (remaining != 0) {
+            int bit = Long.numberOfTrailingZeros(remaining);
+            serviceCounts[bit] += delta;
+            if (serviceCounts[bit] == 0) {
+                serviceSummary &= ~(1L << bit);
+            }
+            remaining &= remaining - 1;
+        }
+        if (delta > 0) {
+            serviceSummary |= serviceBitmask;
+        }
+    }
+
+    // addServiceCounts for the high service words of a place (nothing when null)
+    private void addHighServiceCounts(long[] high, int delta) {
+        if (high == null) {
+            return;
+        }
+        for (int w = 0; w < high.length; w++) {
+            for (long remaining = high[w]; remaining != 0; remaining &= remaining - 1) {
+                addHighServiceCount(w, Long.numberOfTrailingZeros(remaining), delta);
+            }
+        }
+    }
+
+    // Add delta to the count of service bit of high word w, keeping the high summary in sync
+    private void addHighServiceCount(int w, int bit, int delta) {
+        if (highServiceCounts == null || highServiceCounts.length <= w) {
+            int[][] grown = new int[w + 1][];
+            if (highServiceCounts != null) {
+                System.arraycopy(highServiceCounts, 0, grown, 0, highServiceCounts.length);
+            }
+            highServiceCounts = grown;
+        }
+        if (highServiceCounts[w] == null) {
+            highServiceCounts[w] = new int[Long.SIZE];
+        }
+        highServiceCounts[w][bit] += delta;
+        if (highServiceCounts[w][bit] == 0) {
+            if (highServiceSummary != null && w < highServiceSummary.length) {
+                highServiceSummary[w] &= ~(1L << bit);
+            }
+        } else if (delta > 0) {
+            if (highServiceSummary == null || highServiceSummary.length <= w) {
+                long[] word = new long[w + 1];
+                word[w] = 1L << bit;
+                highServiceSummary = orInto(highServiceSummary, word);
+            } else {
+                highServiceSummary[w] |= 1L << bit;
+            }
+        }
+    }
+
+    // Rebuild the summary of a leaf from its point arrays
+    private void recomputeLeafSummary() {
+        long summary = 0;
+        for (int i = 0; i < count; i++) {
+            summary |= serviceBitmasks[i];
+        }
+        serviceSummary = summary;
+        long[] highSummary = null;
+        if (highServiceWords != null) {
+            for (int i = 0; i < count; i++) {
+                if (highServiceWords[i] != null) {
+                    highSummary = orInto(highSummary, highServiceWords[i]);
+                }
+            }
+        }
+        highServiceSummary = highSummary;
+        size = count - tombstones;
+    }
+
+    // Release the leaf arrays once the points live in the child quadrants
+    private void clearPoints() {
+        xs = null;
+        ys = null;
+        serviceBitmasks = null;
+        highServiceWords = null;
+        count = 0;
+        tombstones = 0;
+    }
+
+    private void subdivide() {
+        purgeTombstones();
+        createChildren();
+
+        // The points stay in this subtree, so only the per-service counts need to be built
+        for (int i = 0; i < count; i++) {
+            addServiceCounts(serviceBitmasks[i], 1);
+            addHighServiceCounts(highAt(i), 1);
+        }
+    
+        // Distribute existing points into appropriate quadrants
+        for (int i = 0; i < count; i++) {
+            QuadTree quadrant = getQuadrant(xs[i], ys[i]);
+            if (quadrant != null) {
+                quadrant.insert(xs[i], ys[i], serviceBitmasks[i], highAt(i));
+            }
+        }
+        clearPoints();
+    }
+
+    private void createChildren() {
+        divided = true;  // Mark as divided
+        capacity = baseCapacity(depth); // An overflow bucket that splits drops its doubled capacity
+
+        int halfWidth = boundary.getW() / 2;
+        int halfHeight = boundary.getH() / 2;
+        int x = boundary.getX();
+        int y = boundary.getY();
+    
+        // The east and south halves take the odd column and row, so no coordinate is lost
+        int eastWidth = boundary.getW() - halfWidth;
+        int southHeight = boundary.getH() - halfHeight;
+    
+        // Initialize child quadrants lazily
+        northeast = new QuadTree(new Rectangle(x + halfWidth, y, eastWidth, halfHeight), depth + 1);
+        northwest = new QuadTree(new Rectangle(x, y, halfWidth, halfHeight), depth + 1);
+        southeast = new QuadTree(new Rectangle(x + halfWidth, y + halfHeight, eastWidth, southHeight), depth + 1);
+        southwest = new QuadTree(new Rectangle(x, y + halfHeight, halfWidth, southHeight), depth + 1);
+        QuadTree[] children = {northeast, northwest, southeast, southwest};
+        for (QuadTree child : children) {
+            child.parent = this;
+            child.pointIndex = pointIndex;
+            child.metrics = metrics;
+        }
+    }
+    
+    
+    private QuadTree getQuadrant(int px, int py) {
+        boolean rightHalf = px >= boundary.getX() + boundary.getW() / 2;
+        boolean topHalf = py < boundary.getY() + boundary.getH() / 2; // Assuming top origin
+
+
+        if (rightHalf) {
+            return topHalf ? northeast : southeast;
+        } else {
+            return topHalf ? northwest : southwest;
+        }
+    }
+    
+
+    public boolean insert(Place point) {
+        if (metrics == null) {
+            return insert(point.getX(), point.getY(), point.getServiceBitmask(), point.getHighServiceWords());
+        }
+        long start = System.nanoTime();
+        boolean inserted = insert(point.getX(), point.getY(), point.getServiceBitmask(), point.getHighServiceWords());
+        metrics.record(QuadTreeMetrics.INSERT, start);
+        return inserted;
+    }
+
+    private boolean insert(int px, int py, long serviceBitmask, long[] high) {
+        // Special handling for points on the exclusive right and bottom boundary of the entire space
+        if (px == getBoundary().getX() + getBoundary().getW()) {
+            // Adjust these points to be considered in-bounds by reducing x or y by a minimal value
+            // This is a common technique used to handle boundary conditions in computational problems
+            px = px - 1; // Decrement x to move the point to the left side
+        }
+        if (py == getBoundary().getY() + getBoundary().getH()) {
+            py = py - 1; // Decrement y to move the point upwards
+        }
+    
+        if (!boundary.contains(px, py)) {
+            if (metrics != null) {
+                metrics.outOfBounds++;
+            }
+            return false;
+        }
+    
+        if (!divided && count >= getCurrentCapacity() && tombstones > 0) {
+            purgeTombstones(); // Reuse the slots of removed places before splitting
+        }
+        if (!divided && count >= getCurrentCapacity()) {
+            if (canSubdivide() && !isColocated(px, py)) { // The incoming place counts too
+                subdivide();
+            } else {
+                // Overflow bucket: places that cannot be separated stay in this leaf, and the
+                // doubled capacity keeps the co-location check amortised
+                capacity *= 2;
+            }
+        }
+    
+        if (!divided) {
+            appendPoint(px, py, serviceBitmask, high);
+            generation++;
+            if (pointIndex != null) {
+                pointIndex.put(px, py, this);
+            }
+            return true;
+        } else {
+            QuadTree quadrant = getQuadrant(px, py);
+            if (quadrant != null && quadrant.insert(px, py, serviceBitmask, high)) {
+                size++;
+                addServiceCounts(serviceBitmask, 1);
+                addHighServiceCounts(high, 1);
+                generation++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+    
+    
+    
+    // Collect the places inside the query shape (a Rectangle, Circle or ConvexPolygon)
+    // Nodes lying completely inside the shape are taken whole without testing each point,
+    // so point-level tests only happen on leaves crossing the shape's border
+    public void query(Shape range, ArrayList<Place> found, Long serviceBitmask) {
+        if (metrics == null) {
+            collect(range, found, serviceBitmask, null);
+            return;
+        }
+        long start = System.nanoTime();
+        int before = found.size();
+        collect(range, found, serviceBitmask, metrics);
+        metrics.pointsMatched += found.size() - before;
+        metrics.record(QuadTreeMetrics.QUERY, start);
+    }
+
+    // counters receives the per-node work, or is null to record nothing (queryParallel's tasks
+    // run on pool threads and must not touch the metrics)
+    private void collect(Shape range, ArrayList<Place> found, Long serviceBitmask, QuadTreeMetrics counters) {
+        if (!range.intersects(boundary))
+            return;
+        // Skip the whole subtree when no place in it offers any of the requested services
+        if (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0)
+            return;
+        if (range.containsRectangle(boundary)) {
+            collectAll(found, serviceBitmask, counters);
+            return;
+        }
+        if (counters != null) {
+            counters.visit(!divided, count - tombstones);
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && range.contains(xs[i], ys[i])
+                    && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))) {
+                found.add(new Place(xs[i], ys[i], serviceBitmasks[i], highAt(i)));
+            }
+        }
+        if (divided) {
+            if (northeast != null && range.intersects(northeast.boundary))
+                northeast.collect(range, found, serviceBitmask, counters);
+            if (northwest != null && range.intersects(northwest.boundary))
+                northwest.collect(range, found, serviceBitmask, counters);
+            if (southeast != null && range.intersects(southeast.boundary))
+                southeast.collect(range, found, serviceBitmask, counters);
+            if (southwest != null && range.intersects(southwest.boundary))
+                southwest.collect(range, found, serviceBitmask, counters);
+        }
+    }
+
+    // Parallel version of query for large areas: the descent is split into fork-join tasks at
+    // nodes holding at least PARALLEL_QUERY_THRESHOLD places with two or more matching children.
+    // Each task fills its own result list and the lists are merged as the tasks join, so no
+    // buffer is shared between threads. Small trees and narrow queries stay on the calling thread.
+    // The tasks record no metrics; latency and matched places are recorded once by the caller
+    public ArrayList<Place> queryParallel(Shape range, Long serviceBitmask) {
+        ArrayList<Place> found = new ArrayList<>();
+        if (size < PARALLEL_QUERY_THRESHOLD) {
+            query(range, found, serviceBitmask);
+            return found;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        found = ForkJoinPool.commonPool().invoke(new QueryTask(this, range, serviceBitmask, false));
+        if (metrics != null) {
+            metrics.pointsMatched += found.size();
+            metrics.record(QuadTreeMetrics.QUERY, start);
+        }
+        return found;
+    }
+
+    private static class QueryTask extends RecursiveTask<ArrayList<Place>> {
+        private static final long serialVersionUID = 1L;
+        private final QuadTree node;
+        private final Shape range;
+        private final Long serviceBitmask;
+        private final boolean inside;
+
+        QueryTask(QuadTree node, Shape range, Long serviceBitmask, boolean inside) {
+            this.node = node;
+            this.range = range;
+            this.serviceBitmask = serviceBitmask;
+            this.inside = inside;
+        }
+
+        @Override
+        protected ArrayList<Place> compute() {
+            ArrayList<Place> found = new ArrayList<>();
+            node.queryParallel(range, serviceBitmask, inside, found);
+            return found;
+        }
+    }
+
+    // Helper method for queryParallel; inside is true once an ancestor lies completely inside the shape
+    private void queryParallel(Shape range, Long serviceBitmask, boolean inside, ArrayList<Place> found) {
+        if (size == 0 || (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0))
+            return;
+        if (!inside) {
+            if (!range.intersects(boundary))
+                return;
+            inside = range.containsRectangle(boundary);
+        }
+        if (!divided || size < PARALLEL_QUERY_THRESHOLD) {
+            if (inside) {
+                collectAll(found, serviceBitmask, null);
+            } else {
+                collect(range, found, serviceBitmask, null);
+            }
+            return;
+        }
+
+        QuadTree[] candidates = new QuadTree[4];
+        int matching = 0;
+        QuadTree[] children = {northeast, northwest, southeast, southwest};
+        for (QuadTree child : children) {
+            if (child.size > 0 && (serviceBitmask == null || (child.serviceSummary & serviceBitmask) != 0)
+                    && (inside || range.intersects(child.boundary))) {
+                candidates[matching++] = child;
+            }
+        }
+        if (matching < 2) {
+            // A single matching child gains nothing from a task, keep descending on this thread
+            for (int i = 0; i < matching; i++) {
+                candidates[i].queryParallel(range, serviceBitmask, inside, found);
+            }
+            return;
+        }
+        QueryTask[] tasks = new QueryTask[matching];
+        for (int i = 0; i < matching; i++) {
+            tasks[i] = new QueryTask(candidates[i], range, serviceBitmask, inside);
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (QueryTask task : tasks) {
+            found.addAll(task.join());
+        }
+    }
+
+    // Helper method to collect every place of a subtree that is known to lie inside the query shape
+    private void collectAll(ArrayList<Place> found, Long serviceBitmask, QuadTreeMetrics counters) {
+        if (size == 0 || (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0))
+            return;
+        if (counters != null) {
+            counters.visit(!divided, count - tombstones);
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))) {
+                found.add(new Place(xs[i], ys[i], serviceBitmasks[i], highAt(i)));
+            }
+        }
+        if (divided) {
+            northeast.collectAll(found, serviceBitmask, counters);
+            northwest.collectAll(found, serviceBitmask, counters);
+            southeast.collectAll(found, serviceBitmask, counters);
+            southwest.collectAll(found, serviceBitmask, counters);
+        }
+    }
+
+    // Stream the places inside the query shape to the visitor without building a result list
+    // Returns false if the visitor stopped the traversal early
+    public boolean query(Shape range, Long serviceBitmask, PlaceVisitor visitor) {
+        if (metrics == null) {
+            return visit(range, serviceBitmask, visitor);
+        }
+        long start = System.nanoTime();
+        QuadTreeMetrics counters = metrics;
+        boolean completed = visit(range, serviceBitmask, (x, y, placeBitmask, high) -> {
+            counters.pointsMatched++;
+            return visitor.visit(x, y, placeBitmask, high);
+        });
+        metrics.record(QuadTreeMetrics.QUERY, start);
+        return completed;
+    }
+
+    private boolean visit(Shape range, Long serviceBitmask, PlaceVisitor visitor) {
+        if (size == 0 || !range.intersects(boundary))
+            return true;
+        if (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0)
+            return true;
+        if (range.containsRectangle(boundary))
+            return visitAll(serviceBitmask, visitor);
+        if (metrics != null) {
+            metrics.visit(!divided, count - tombstones);
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && range.contains(xs[i], ys[i])
+                    && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))
+                    && !visitor.visit(xs[i], ys[i], serviceBitmasks[i], highAt(i))) {
+                return false;
+            }
+        }
+        if (divided) {
+            return northeast.visit(range, serviceBitmask, visitor)
+                    && northwest.visit(range, serviceBitmask, visitor)
+                    && southeast.visit(range, serviceBitmask, visitor)
+                    && southwest.visit(range, serviceBitmask, visitor);
+        }
+        return true;
+    }
+
+    // Stream at most limit places inside the query shape to the visitor
+    // Returns the number of places handed to the visitor
+    public int query(Shape range, Long serviceBitmask, int limit, PlaceVisitor visitor) {
+        if (limit <= 0) {
+            return 0;
+        }
+        int[] visited = new int[1];
+        query(range, serviceBitmask, (x, y, placeBitmask, high) -> {
+            visited[0]++;
+            return visitor.visit(x, y, placeBitmask, high) && visited[0] < limit;
+        });
+        return visited[0];
+    }
+
+    // Helper method to stream every place of a subtree that is known to lie inside the query shape
+    private boolean visitAll(Long serviceBitmask, PlaceVisitor visitor) {
+        if (size == 0 || (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0))
+            return true;
+        if (metrics != null) {
+            metrics.visit(!divided, count - tombstones);
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))
+                    && !visitor.visit(xs[i], ys[i], serviceBitmasks[i], highAt(i))) {
+                return false;
+            }
+        }
+        if (divided) {
+            return northeast.visitAll(serviceBitmask, visitor)
+                    && northwest.visitAll(serviceBitmask, visitor)
+                    && southeast.visitAll(serviceBitmask, visitor)
+                    && southwest.visitAll(serviceBitmask, visitor);
+        }
+        return true;
+    }
+
+    // Fetch one page of the places inside the query shape. Pass null as the cursor for the first
+    // page and the returned cursor for the following ones; null is returned after the last page.
+    // Places are paged in a fixed spatial order (quadrant by quadrant down to single cells, the
+    // order of the tree's own subdivision) and the cursor is an opaque token holding the last
+    // place returned, so each page resumes right after it without rescanning the region.
+    // Edits between pages do not disturb the cursor: a place present throughout the paging is
+    // returned exactly once, whatever splits, merges or removals happen in the meantime. A place
+    // added, removed or moved between pages shows up when its position is after the cursor's.
+    // Places sharing coordinates are told apart by how many of them were returned, so removing
+    // one of those between pages can shift the others by one
+    public String queryPage(Shape range, Long serviceBitmask, String cursor, int pageSize, ArrayList<Place> found) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Illegal page size: " + pageSize);
+        }
+        PageState state = new PageState(pageSize, found);
+        if (cursor != null) {
+            state.decode(cursor);
+            if (!boundary.contains(state.lastX, state.lastY)) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        queryPage(range, serviceBitmask, false, state);
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.QUERY, start);
+        }
+        return state.next;
+    }
+
+    // Returns false once the page is full, leaving the cursor of the next page in state.next
+    // While state.resuming, this node contains the cursor's place and only what follows it is
+    // returned
+    private boolean queryPage(Shape range, Long serviceBitmask, boolean inside, PageState state) {
+        if (size == 0 || !range.intersects(boundary))
+            return true;
+        if (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0)
+            return true;
+        inside = inside || range.containsRectangle(boundary);
+        if (!divided) {
+            return pageLeaf(range, serviceBitmask, inside, state);
+        }
+        QuadTree[] children = {northeast, northwest, southeast, southwest};
+        // Children before the one holding the cursor's place come before it in the order
+        int first = state.resuming ? quadrantOrder(boundary, state.lastX, state.lastY) : 0;
+        for (int c = first; c < children.length; c++) {
+            if (!children[c].queryPage(range, serviceBitmask, inside, state)) {
+                return false;
+            }
+            state.resuming = false;
+        }
+        return true;
+    }
+
+    // Helper method for queryPage: the leaf's matches are returned in the paging order
+    private boolean pageLeaf(Shape range, Long serviceBitmask, boolean inside, PageState state) {
+        int[] slots = new int[count];
+        long[] keys = new long[slots.length];
+        int matches = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (inside || range.contains(xs[i], ys[i]))
+                    && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))) {
+                // Insertion sort by key; leaves are small and co-located places are already in order
+                long key = pageOrderKey(boundary, xs[i], ys[i]);
+                int j = matches++;
+                while (j > 0 && keys[j - 1] > key) {
+                    keys[j] = keys[j - 1];
+                    slots[j] = slots[j - 1];
+                    j--;
+                }
+                keys[j] = key;
+                slots[j] = i;
+            }
+        }
+        long cursorKey = state.resuming ? pageOrderKey(boundary, state.lastX, state.lastY) : -1;
+        int skip = state.resuming ? state.run : 0;
+        state.resuming = false;
+        for (int m = 0; m < matches; m++) {
+            if (keys[m] < cursorKey) {
+                continue;
+            }
+            if (keys[m] == cursorKey && skip > 0) {
+                skip--; // Returned on an earlier page
+                continue;
+            }
+            int i = slots[m];
+            if (state.found.size() - state.initialSize == state.pageSize) {
+                state.next = state.encode();
+                return false;
+            }
+            state.found.add(new Place(xs[i], ys[i], serviceBitmasks[i], highAt(i)));
+            if (xs[i] == state.lastX && ys[i] == state.lastY) {
+                state.run++;
+            } else {
+                state.lastX = xs[i];
+                state.lastY = ys[i];
+                state.run = 1;
+            }
+        }
+        return true;
+    }
+
+    // Position of (x, y) in the paging order among the places of the region: the quadrant taken
+    // at each halving of the region, in child order, down to a single cell. Equal keys mean
+    // equal coordinates, and within a node the order agrees with the order of its children
+    private static long pageOrderKey(Rectangle region, int x, int y) {
+        int left = region.getX();
+        int top = region.getY();
+        int width = region.getW();
+        int height = region.getH();
+        long key = 0;
+        for (int level = 0; level < Integer.SIZE - 1; level++) { // Any int extent halves to 1 by then
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int digit = 0;
+            if (width > 1 || height > 1) {
+                boolean east = x >= left + halfWidth;
+                boolean south = y >= top + halfHeight;
+                digit = quadrantOrder(east, south);
+                if (east) {
+                    left += halfWidth;
+                    width -= halfWidth;
+                } else {
+                    width = halfWidth;
+                }
+                if (south) {
+                    top += halfHeight;
+                    height -= halfHeight;
+                } else {
+                    height = halfHeight;
+                }
+            }
+            key = (key << 2) | digit;
+        }
+        return key;
+    }
+
+    // Index of the child of a node with this boundary holding (x, y), in the order northeast,
+    // northwest, southeast, southwest
+    private static int quadrantOrder(Rectangle region, int x, int y) {
+        return quadrantOrder(x >= region.getX() + region.getW() / 2, y >= region.getY() + region.getH() / 2);
+    }
+
+    private static int quadrantOrder(boolean east, boolean south) {
+        return (south ? 2 : 0) + (east ? 0 : 1);
+    }
+
+    // Paging position: the last place returned and how many places at its coordinates have been
+    // returned so far
+    private static class PageState {
+        private final int pageSize;
+        private final ArrayList<Place> found;
+        private final int initialSize;
+        private boolean resuming;
+        private int lastX;
+        private int lastY;
+        private int run;
+        private String next;
+
+        PageState(int pageSize, ArrayList<Place> found) {
+            this.pageSize = pageSize;
+            this.found = found;
+            this.initialSize = found.size();
+        }
+
+        // Cursor format: x, y and the count of places returned at (x, y), e.g. "120:4410:1"
+        String encode() {
+            return lastX + ":" + lastY + ":" + run;
+        }
+
+        void decode(String cursor) {
+            String[] parts = cursor.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            try {
+                lastX = Integer.parseInt(parts[0]);
+                lastY = Integer.parseInt(parts[1]);
+                run = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            if (run < 1) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            resuming = true;
+        }
+    }
+
+    // Count the places inside the query shape offering any of the given services (all places when null)
+    // Nodes lying completely inside the shape are answered from their statistics in O(1)
+    // when there is no filter or the filter names a single service
+    public int count(Shape range, Long serviceBitmask) {
+        if (metrics == null) {
+            return countIn(range, serviceBitmask);
+        }
+        long start = System.nanoTime();
+        int total = countIn(range, serviceBitmask);
+        metrics.pointsMatched += total;
+        metrics.record(QuadTreeMetrics.COUNT, start);
+        return total;
+    }
+
+    private int countIn(Shape range, Long serviceBitmask) {
+        if (size == 0 || !range.intersects(boundary))
+            return 0;
+        if (serviceBitmask != null && (serviceSummary & serviceBitmask) == 0)
+            return 0;
+        if (range.containsRectangle(boundary)) {
+            if (serviceBitmask == null)
+                return size;
+            if (Long.bitCount(serviceBitmask) == 1)
+                return getServiceCount(Long.numberOfTrailingZeros(serviceBitmask));
+        }
+        if (metrics != null) {
+            metrics.visit(!divided, count - tombstones);
+        }
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && range.contains(xs[i], ys[i])
+                    && (serviceBitmask == null || hasAnyService(serviceBitmasks[i], serviceBitmask))) {
+                total++;
+            }
+        }
+        if (divided) {
+            total += northeast.countIn(range, serviceBitmask);
+            total += northwest.countIn(range, serviceBitmask);
+            total += southeast.countIn(range, serviceBitmask);
+            total += southwest.countIn(range, serviceBitmask);
+        }
+        return total;
+    }
+
+    // Stream the places inside the query shape that satisfy the predicate to the visitor
+    // Returns false if the visitor stopped the traversal early
+    public boolean queryMatching(Shape range, ServicePredicate predicate, PlaceVisitor visitor) {
+        if (metrics == null) {
+            return visitMatching(range, predicate, visitor);
+        }
+        long start = System.nanoTime();
+        QuadTreeMetrics counters = metrics;
+        boolean completed = visitMatching(range, predicate, (x, y, placeBitmask, high) -> {
+            counters.pointsMatched++;
+            return visitor.visit(x, y, placeBitmask, high);
+        });
+        metrics.record(QuadTreeMetrics.QUERY, start);
+        return completed;
+    }
+
+    // Stream at most limit places satisfying the predicate to the visitor
+    // Returns the number of places handed to the visitor
+    public int queryMatching(Shape range, ServicePredicate predicate, int limit, PlaceVisitor visitor) {
+        if (limit <= 0) {
+            return 0;
+        }
+        int[] visited = new int[1];
+        queryMatching(range, predicate, (x, y, placeBitmask, high) -> {
+            visited[0]++;
+            return visitor.visit(x, y, placeBitmask, high) && visited[0] < limit;
+        });
+        return visited[0];
+    }
+
+    private boolean visitMatching(Shape range, ServicePredicate predicate, PlaceVisitor visitor) {
+        if (size == 0 || !range.intersects(boundary) || rejectsAll(predicate))
+            return true;
+        boolean inside = range.containsRectangle(boundary);
+        if (inside && acceptsAll(predicate))
+            return visitAll(null, visitor);
+        if (metrics != null) {
+            metrics.visit(!divided, count - tombstones);
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (inside || range.contains(xs[i], ys[i]))
+                    && predicate.matches(serviceBitmasks[i], highAt(i))
+                    && !visitor.visit(xs[i], ys[i], serviceBitmasks[i], highAt(i))) {
+                return false;
+            }
+        }
+        if (divided) {
+            return northeast.visitMatching(range, predicate, visitor)
+                    && northwest.visitMatching(range, predicate, visitor)
+                    && southeast.visitMatching(range, predicate, visitor)
+                    && southwest.visitMatching(range, predicate, visitor);
+        }
+        return true;
+    }
+
+    // Count the places inside the query shape that satisfy the predicate
+    // Nodes inside the shape whose statistics show that all or none of their places match are
+    // answered without visiting them
+    public int countMatching(Shape range, ServicePredicate predicate) {
+        if (metrics == null) {
+            return countMatchingIn(range, predicate);
+        }
+        long start = System.nanoTime();
+        int total = countMatchingIn(range, predicate);
+        metrics.pointsMatched += total;
+        metrics.record(QuadTreeMetrics.COUNT, start);
+        return total;
+    }
+
+    private int countMatchingIn(Shape range, ServicePredicate predicate) {
+        if (size == 0 || !range.intersects(boundary) || rejectsAll(predicate))
+            return 0;
+        boolean inside = range.containsRectangle(boundary);
+        if (inside && acceptsAll(predicate))
+            return size;
+        if (metrics != null) {
+            metrics.visit(!divided, count - tombstones);
+        }
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (inside || range.contains(xs[i], ys[i]))
+                    && predicate.matches(serviceBitmasks[i], highAt(i))) {
+                total++;
+            }
+        }
+        if (divided) {
+            total += northeast.countMatchingIn(range, predicate);
+            total += northwest.countMatchingIn(range, predicate);
+            total += southeast.countMatchingIn(range, predicate);
+            total += southwest.countMatchingIn(range, predicate);
+        }
+        return total;
+    }
+
+    // Whether no place of this subtree can satisfy the predicate: the summary lacks a required
+    // service or every "any" service, or (on divided nodes) every place offers an excluded one
+    private boolean rejectsAll(ServicePredicate predicate) {
+        if (!predicate.mayMatch(serviceSummary, highServiceSummary))
+            return true;
+        if (divided && serviceCounts != null) {
+            for (long remaining = predicate.excluded & serviceSummary; remaining != 0; remaining &= remaining - 1) {
+                if (serviceCounts[Long.numberOfTrailingZeros(remaining)] == size)
+                    return true;
+            }
+        }
+        if (divided && predicate.highExcluded != null) {
+            for (int w = 0; w < predicate.highExcluded.length; w++) {
+                for (long remaining = predicate.highExcluded[w]; remaining != 0; remaining &= remaining - 1) {
+                    if (getServiceCount((w + 1) * Long.SIZE + Long.numberOfTrailingZeros(remaining)) == size)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Whether every place of this subtree satisfies the predicate: no place offers an excluded
+    // service, there are no "any" services and (on divided nodes) every place offers each
+    // required service
+    private boolean acceptsAll(ServicePredicate predicate) {
+        if ((serviceSummary & predicate.excluded) != 0 || predicate.any != 0 || predicate.highAny != null)
+            return false;
+        if (predicate.highExcluded != null && intersects(highServiceSummary, predicate.highExcluded))
+            return false;
+        if (predicate.required == 0 && predicate.highRequired == null)
+            return true;
+        if (!divided)
+            return false;
+        for (long remaining = predicate.required; remaining != 0; remaining &= remaining - 1) {
+            int bit = Long.numberOfTrailingZeros(remaining);
+            if (serviceCounts == null || bit >= serviceCounts.length || serviceCounts[bit] != size)
+                return false;
+        }
+        if (predicate.highRequired != null) {
+            for (int w = 0; w < predicate.highRequired.length; w++) {
+                for (long remaining = predicate.highRequired[w]; remaining != 0; remaining &= remaining - 1) {
+                    if (getServiceCount((w + 1) * Long.SIZE + Long.numberOfTrailingZeros(remaining)) != size)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Whether two word arrays share a bit
+    private static boolean intersects(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        for (int w = 0; w < Math.min(a.length, b.length); w++) {
+            if ((a[w] & b[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Count the places inside the query shape per service; index i holds the count for
+    // ServiceRegistry.getServiceType(i)
+    public int[] countByService(Shape range) {
+        int[] totals = new int[ServiceRegistry.getServiceTypeCount()];
+        long start = metrics == null ? 0 : System.nanoTime();
+        countByService(range, totals);
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.COUNT, start);
+        }
+        return totals;
+    }
+
+    private void countByService(Shape range, int[] totals) {
+        if (size == 0 || !range.intersects(boundary))
+            return;
+        boolean inside = range.containsRectangle(boundary);
+        if (inside && divided) {
+            if (serviceCounts != null) {
+                for (int s = 0; s < Math.min(totals.length, serviceCounts.length); s++) {
+                    totals[s] += serviceCounts[s];
+                }
+            }
+            if (highServiceCounts != null) {
+                for (int w = 0; w < highServiceCounts.length; w++) {
+                    for (int bit = 0; highServiceCounts[w] != null && bit < Long.SIZE; bit++) {
+                        int s = (w + 1) * Long.SIZE + bit;
+                        if (s < totals.length) {
+                            totals[s] += highServiceCounts[w][bit];
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && (inside || range.contains(xs[i], ys[i]))) {
+                long[] high = highAt(i);
+                int words = high == null ? 1 : high.length + 1;
+                for (int w = 0; w < words; w++) {
+                    long remaining = w == 0 ? serviceBitmasks[i] : high[w - 1];
+                    while (remaining != 0) {
+                        int s = w * Long.SIZE + Long.numberOfTrailingZeros(remaining);
+                        if (s < totals.length) {
+                            totals[s]++;
+                        }
+                        remaining &= remaining - 1;
+                    }
+                }
+            }
+        }
+        if (divided) {
+            northeast.countByService(range, totals);
+            northwest.countByService(range, totals);
+            southeast.countByService(range, totals);
+            southwest.countByService(range, totals);
+        }
+    }
+
+    // Find the k places closest to (x, y), nearest first, optionally limited to places offering
+    // any of the given services. Best-first search: nodes and candidate places share one queue
+    // ordered by squared distance, so a node is only opened once nothing closer is left
+    public ArrayList<Place> nearest(int x, int y, int k, Long serviceBitmask) {
+        ArrayList<Place> result = new ArrayList<>();
+        if (k <= 0) {
+            return result;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        PriorityQueue<Object> queue = new PriorityQueue<>();
+        queue.add(boundary.distanceSquaredTo(x, y), this);
+        while (!queue.isEmpty() && result.size() < k) {
+            Object next = queue.poll();
+            if (next instanceof Place) {
+                result.add((Place) next); // Nothing left in the queue can be closer
+                continue;
+            }
+            QuadTree node = (QuadTree) next;
+            if (metrics != null) {
+                metrics.visit(!node.divided, node.count - node.tombstones);
+            }
+            if (!node.divided) {
+                for (int i = 0; i < node.count; i++) {
+                    if (node.xs[i] != TOMBSTONE
+                            && (serviceBitmask == null || hasAnyService(node.serviceBitmasks[i], serviceBitmask))) {
+                        long dx = (long) node.xs[i] - x;
+                        long dy = (long) node.ys[i] - y;
+                        queue.add(dx * dx + dy * dy, new Place(node.xs[i], node.ys[i], node.serviceBitmasks[i], node.highAt(i)));
+                    }
+                }
+            } else {
+                node.enqueueChild(node.northeast, x, y, serviceBitmask, queue);
+                node.enqueueChild(node.northwest, x, y, serviceBitmask, queue);
+                node.enqueueChild(node.southeast, x, y, serviceBitmask, queue);
+                node.enqueueChild(node.southwest, x, y, serviceBitmask, queue);
+            }
+        }
+        if (metrics != null) {
+            metrics.pointsMatched += result.size();
+            metrics.record(QuadTreeMetrics.NEAREST, start);
+        }
+        return result;
+    }
+
+    // Helper method to queue a child for the nearest search unless it cannot hold a match
+    private void enqueueChild(QuadTree child, int x, int y, Long serviceBitmask, PriorityQueue<Object> queue) {
+        if (child == null || child.size == 0) {
+            return;
+        }
+        if (serviceBitmask != null && (child.serviceSummary & serviceBitmask) == 0) {
+            return;
+        }
+        queue.add(child.boundary.distanceSquaredTo(x, y), child);
+    }
+
+    private boolean hasAnyService(long placeBitmask, long serviceBitmask) {
+        return (placeBitmask & serviceBitmask) != 0;
+    }
+
+    public void insertBatch(ArrayList<Place> batch) {
+        if (batch.isEmpty()) return;
+
+        int length = batch.size();
+        int[] batchXs = new int[length];
+        int[] batchYs = new int[length];
+        long[] batchMasks = new long[length];
+        long[][] batchHigh = null;
+        for (int i = 0; i < length; i++) {
+            Place point = batch.get(i);
+            batchXs[i] = point.getX();
+            batchYs[i] = point.getY();
+            batchMasks[i] = point.getServiceBitmask();
+            if (point.getHighServiceWords() != null) {
+                if (batchHigh == null) {
+                    batchHigh = new long[length][];
+                }
+                batchHigh[i] = point.getHighServiceWords();
+            }
+        }
+        insertBatch(batchXs, batchYs, batchMasks, batchHigh, length);
+    }
+
+    // Bulk load the first length points of the parallel arrays; the arrays are reordered in place
+    // The batch is split into quadrants recursively, which is an MSD radix sort on the points'
+    // Z-order (Morton) key, and every node on the way is built once at its final size instead of
+    // walking the tree from the root for each point
+    public void insertBatch(int[] batchXs, int[] batchYs, long[] batchMasks, int length) {
+        insertBatch(batchXs, batchYs, batchMasks, null, length);
     }
 
-    private void subdivide() {
-        divided = true;  // Mark as divided
-    
-        int halfWidth = boundary.getW() / 2;
-        int halfHeight = boundary.getH() / 2;
-        int x = boundary.getX();
-        int y = boundary.getY();
-    
-        // Initialize child quadrants lazily
-        northeast = new QuadTree(new Rectangle(x + halfWidth, y, halfWidth, halfHeight), depth + 1);
-        northwest = new QuadTree(new Rectangle(x, y, halfWidth, halfHeight), depth + 1);
-        southeast = new QuadTree(new Rectangle(x + halfWidth, y + halfHeight, halfWidth, halfHeight), depth + 1);
-        southwest = new QuadTree(new Rectangle(x, y + halfHeight, halfWidth, halfHeight), depth + 1);
-    
-        // Distribute existing points into appropriate quadrants
-        Iterator<Place> iterator = points.iterator();
-        while (iterator.hasNext()) {
-            Place point = iterator.next();
-            QuadTree quadrant = getQuadrant(point);
-            if (quadrant != null) {
-                quadrant.insert(point);
+    // Same, with the high service words of each point in batchHigh (null when no point has any)
+    // Like the coordinates, the entries of batchHigh may be rewritten
+    public void insertBatch(int[] batchXs, int[] batchYs, long[] batchMasks, long[][] batchHigh, int length) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        length = clampToBoundary(batchXs, batchYs, batchMasks, batchHigh, 0, length);
+        bulkInsert(batchXs, batchYs, batchMasks, batchHigh, 0, length, Integer.MAX_VALUE);
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.INSERT_BATCH, start);
+        }
+    }
+
+    public void insertBatchParallel(ArrayList<Place> batch) {
+        int length = batch.size();
+        int[] batchXs = new int[length];
+        int[] batchYs = new int[length];
+        long[] batchMasks = new long[length];
+        long[][] batchHigh = null;
+        for (int i = 0; i < length; i++) {
+            Place point = batch.get(i);
+            batchXs[i] = point.getX();
+            batchYs[i] = point.getY();
+            batchMasks[i] = point.getServiceBitmask();
+            if (point.getHighServiceWords() != null) {
+                if (batchHigh == null) {
+                    batchHigh = new long[length][];
+                }
+                batchHigh[i] = point.getHighServiceWords();
             }
         }
-        points.clear();
+        insertBatchParallel(batchXs, batchYs, batchMasks, batchHigh, length, PARALLEL_BUILD_GRANULARITY);
     }
-    
-    
-    private QuadTree getQuadrant(Place point) {
-        boolean rightHalf = point.getX() >= boundary.getX() + boundary.getW() / 2;
-        boolean topHalf = point.getY() < boundary.getY() + boundary.getH() / 2; // Assuming top origin
 
+    // Parallel version of insertBatch: the four quadrant subtrees are independent once the batch
+    // is partitioned, so each one is built as a fork-join task while its slice of the batch holds
+    // at least granularity points; smaller slices are built sequentially by the task that owns them
+    public void insertBatchParallel(int[] batchXs, int[] batchYs, long[] batchMasks, int length, int granularity) {
+        insertBatchParallel(batchXs, batchYs, batchMasks, null, length, granularity);
+    }
 
-        if (rightHalf) {
-            return topHalf ? northeast : southeast;
-        } else {
-            return topHalf ? northwest : southwest;
+    // Same, with the high service words of each point in batchHigh (null when no point has any)
+    public void insertBatchParallel(int[] batchXs, int[] batchYs, long[] batchMasks, long[][] batchHigh,
+                                    int length, int granularity) {
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Illegal granularity: " + granularity);
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        length = clampToBoundary(batchXs, batchYs, batchMasks, batchHigh, 0, length); // Before forking: counts into the metrics
+        ForkJoinPool.commonPool().invoke(new BulkInsertTask(this, batchXs, batchYs, batchMasks, batchHigh, 0, length, granularity));
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.INSERT_BATCH, start);
         }
     }
-    
 
-    public boolean insert(Place point) {
-        // Special handling for points on the exclusive right and bottom boundary of the entire space
-        if ((point.getX() == getBoundary().getX() + getBoundary().getW()) || 
-            (point.getY() == getBoundary().getY() + getBoundary().getH())) {
-            // Adjust these points to be considered in-bounds by reducing x or y by a minimal value
-            // This is a common technique used to handle boundary conditions in computational problems
-            if (point.getX() == getBoundary().getX() + getBoundary().getW()) {
-                point.setX(point.getX() - 1); // Decrement x to move the point to the left side
-            }
-            if (point.getY() == getBoundary().getY() + getBoundary().getH()) {
-                point.setY(point.getY() - 1); // Decrement y to move the point upwards
-            }
+    private static class BulkInsertTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final QuadTree node;
+        private final int[] bx, by;
+        private final long[] bm;
+        private final long[][] bh;
+        private final int from, to, granularity;
+
+        BulkInsertTask(QuadTree node, int[] bx, int[] by, long[] bm, long[][] bh, int from, int to, int granularity) {
+            this.node = node;
+            this.bx = bx;
+            this.by = by;
+            this.bm = bm;
+            this.bh = bh;
+            this.from = from;
+            this.to = to;
+            this.granularity = granularity;
         }
-    
-        if (!boundary.contains(point.getX(), point.getY())) {
-            System.err.println("Point out of bounds: " + point);
-            return false;
+
+        @Override
+        protected void compute() {
+            node.bulkInsert(bx, by, bm, bh, from, to, granularity);
         }
-    
-        if (!divided && points.size() >= getCurrentCapacity()) {
-            subdivide();
+    }
+
+    // Helper method to bulk insert the points in [from, to) into this subtree, forking a task
+    // per quadrant while the range holds at least granularity points
+    // The points must lie inside this node (see clampToBoundary); partitioning keeps each
+    // quadrant's slice inside that quadrant
+    private void bulkInsert(int[] bx, int[] by, long[] bm, long[][] bh, int from, int to, int granularity) {
+        int length = to - from;
+        if (length == 0) return;
+        generation++;
+        purgeTombstones();
+
+        if (!divided && (count + length <= getCurrentCapacity()
+                || !canSubdivide() || isColocated(bx, by, from, to))) {
+            ensureLeafCapacity(count + length);
+            for (int i = from; i < to; i++) {
+                appendPoint(bx[i], by[i], bm[i], bh == null ? null : bh[i]);
+            }
+            capacity = Math.max(capacity, count); // Overflow bucket when the batch did not fit
+            if (pointIndex != null) {
+                if (granularity == Integer.MAX_VALUE) {
+                    indexPoints(count - length);
+                } else {
+                    synchronized (pointIndex) { // Sibling subtrees may be built by other threads
+                        indexPoints(count - length);
+                    }
+                }
+            }
+            return;
         }
-    
+
         if (!divided) {
-            points.add(point);
-            return true;
+            // Overflowing leaf: its own points join the batch and the node is split once
+            if (count > 0) {
+                int merged = count + length;
+                int[] mx = new int[merged];
+                int[] my = new int[merged];
+                long[] mm = new long[merged];
+                System.arraycopy(xs, 0, mx, 0, count);
+                System.arraycopy(ys, 0, my, 0, count);
+                System.arraycopy(serviceBitmasks, 0, mm, 0, count);
+                System.arraycopy(bx, from, mx, count, length);
+                System.arraycopy(by, from, my, count, length);
+                System.arraycopy(bm, from, mm, count, length);
+                long[][] mh = null;
+                if (highServiceWords != null || bh != null) {
+                    mh = new long[merged][];
+                    if (highServiceWords != null) {
+                        System.arraycopy(highServiceWords, 0, mh, 0, count);
+                    }
+                    if (bh != null) {
+                        System.arraycopy(bh, from, mh, count, length);
+                    }
+                }
+                bx = mx;
+                by = my;
+                bm = mm;
+                bh = mh;
+                from = 0;
+                to = merged;
+            }
+            clearPoints();
+            createChildren();
+        }
+
+        // Split [from, to) into west | east, then each half into north | south
+        int midX = boundary.getX() + boundary.getW() / 2;
+        int midY = boundary.getY() + boundary.getH() / 2;
+        int eastStart = partition(bx, by, bm, bh, from, to, true, midX);
+        int southwestStart = partition(bx, by, bm, bh, from, eastStart, false, midY);
+        int southeastStart = partition(bx, by, bm, bh, eastStart, to, false, midY);
+        if (to - from >= granularity) {
+            ForkJoinTask.invokeAll(
+                    new BulkInsertTask(northwest, bx, by, bm, bh, from, southwestStart, granularity),
+                    new BulkInsertTask(southwest, bx, by, bm, bh, southwestStart, eastStart, granularity),
+                    new BulkInsertTask(northeast, bx, by, bm, bh, eastStart, southeastStart, granularity),
+                    new BulkInsertTask(southeast, bx, by, bm, bh, southeastStart, to, granularity));
         } else {
-            QuadTree quadrant = getQuadrant(point);
-            if (quadrant != null) {
-                return quadrant.insert(point);
+            northwest.bulkInsert(bx, by, bm, bh, from, southwestStart, granularity);
+            southwest.bulkInsert(bx, by, bm, bh, southwestStart, eastStart, granularity);
+            northeast.bulkInsert(bx, by, bm, bh, eastStart, southeastStart, granularity);
+            southeast.bulkInsert(bx, by, bm, bh, southeastStart, to, granularity);
+        }
+        rebuildSummaryFromChildren();
+    }
+
+    // Helper method applying insert's boundary rules to [from, to): points on the exclusive right or
+    // bottom edge are moved inside, points out of bounds are counted and dropped
+    // Returns the new end of the range; called once per batch on the calling thread
+    private int clampToBoundary(int[] bx, int[] by, long[] bm, long[][] bh, int from, int to) {
+        int right = boundary.getX() + boundary.getW();
+        int bottom = boundary.getY() + boundary.getH();
+        int i = from;
+        while (i < to) {
+            if (bx[i] == right) bx[i]--;
+            if (by[i] == bottom) by[i]--;
+            if (boundary.contains(bx[i], by[i])) {
+                if (bh != null) {
+                    bh[i] = Place.trimHighWords(bh[i]);
+                }
+                i++;
             } else {
-                return false;
+                if (metrics != null) {
+                    metrics.outOfBounds++;
+                }
+                to--;
+                swap(bx, by, bm, bh, i, to);
             }
         }
+        return to;
     }
-    
-    
-    
-    public void query(Rectangle range, ArrayList<Place> found, Integer serviceBitmask) {
-        if (!boundary.intersects(range))
-            return;
-        Iterator<Place> iterator = points.iterator();
-        while (iterator.hasNext()) {
-            Place point = iterator.next();
-            if (range.contains(point.getX(), point.getY())
-                    && (serviceBitmask == null || hasAnyService(point, serviceBitmask))) {
-                found.add(point);
+
+    // Helper method to reorder [from, to) so points below mid (on x or y) come first; returns the split index
+    private static int partition(int[] bx, int[] by, long[] bm, long[][] bh, int from, int to, boolean onX, int mid) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            if ((onX ? bx[low] : by[low]) < mid) {
+                low++;
+            } else {
+                swap(bx, by, bm, bh, low, high);
+                high--;
             }
         }
-        if (divided) {
-            if (northeast != null && northeast.boundary.intersects(range))
-                northeast.query(range, found, serviceBitmask);
-            if (northwest != null && northwest.boundary.intersects(range))
-                northwest.query(range, found, serviceBitmask);
-            if (southeast != null && southeast.boundary.intersects(range))
-                southeast.query(range, found, serviceBitmask);
-            if (southwest != null && southwest.boundary.intersects(range))
-                southwest.query(range, found, serviceBitmask);
-        }
+        return low;
     }
 
-    private boolean hasAnyService(Place place, int serviceBitmask) {
-        return (place.getServiceBitmask() & serviceBitmask) != 0;
+    private static void swap(int[] bx, int[] by, long[] bm, long[][] bh, int i, int j) {
+        int tx = bx[i];
+        bx[i] = bx[j];
+        bx[j] = tx;
+        int ty = by[i];
+        by[i] = by[j];
+        by[j] = ty;
+        long tm = bm[i];
+        bm[i] = bm[j];
+        bm[j] = tm;
+        if (bh != null) {
+            long[] th = bh[i];
+            bh[i] = bh[j];
+            bh[j] = th;
+        }
     }
 
-    public void insertBatch(ArrayList<Place> batch) {
-        if (batch.isEmpty()) return;
-    
-    
-        if (!divided && points.size() + batch.size() > getCurrentCapacity()) {
-            
-            subdivide();
-        }
-        
-        if (!divided) {
-            points.addAll(batch);
-            return;
-        } else {
-            Iterator<Place> iterator = batch.iterator();
-            while (iterator.hasNext()) {
-                Place point = iterator.next();
-                boolean inserted = insert(point);
-                if (!inserted) {
-                    System.err.println("Failed to insert point: " + point + " at boundary: " + boundary);
+    // Helper method to recompute a divided node's statistics from its four children
+    private void rebuildSummaryFromChildren() {
+        size = 0;
+        serviceSummary = 0;
+        serviceCounts = null;
+        highServiceSummary = null;
+        highServiceCounts = null;
+        QuadTree[] children = {northeast, northwest, southeast, southwest};
+        for (QuadTree child : children) {
+            size += child.size;
+            if (child.divided) {
+                if (child.serviceCounts != null) {
+                    for (int s = 0; s < child.serviceCounts.length; s++) {
+                        if (child.serviceCounts[s] > 0) {
+                            addServiceCounts(1L << s, child.serviceCounts[s]);
+                        }
+                    }
+                }
+                for (int w = 0; child.highServiceCounts != null && w < child.highServiceCounts.length; w++) {
+                    for (int bit = 0; child.highServiceCounts[w] != null && bit < Long.SIZE; bit++) {
+                        if (child.highServiceCounts[w][bit] > 0) {
+                            addHighServiceCount(w, bit, child.highServiceCounts[w][bit]);
+                        }
+                    }
+                }
+            } else {
+                for (int i = 0; i < child.count; i++) {
+                    addServiceCounts(child.serviceBitmasks[i], 1);
+                    addHighServiceCounts(child.highAt(i), 1);
                 }
             }
         }
-    
-        
     }
 
     public void editPlaceService(int x, int y, String action, String serviceType) {
-        // Find the place in the QuadTree
-        Place place = findPlace(x, y);
-        if (place == null) {
+        // Find the leaf and slot holding the place in the QuadTree
+        QuadTree leaf = findLeaf(x, y);
+        int slot = leaf == null ? -1 : leaf.indexOf(x, y);
+        if (slot < 0) {
             System.out.println("Place not found at coordinates (" + x + ", " + y + ")");
             return;
         }
@@ -175,6 +1534,7 @@ public class QuadTree {
         int serviceIndex = ServiceRegistry.getServiceTypeIndex(serviceType);
 
         // Check if the place already has the specified service
+        Place place = new Place(x, y, leaf.serviceBitmasks[slot], leaf.highAt(slot));
         boolean hasService = place.isServiceEnabled(serviceIndex);
 
         // Update the place's service bitmask based on the action
@@ -183,6 +1543,7 @@ public class QuadTree {
                 System.out.println("Place already has service '" + serviceType + "'");
             } else {
                 place.toggleService(serviceIndex, true);
+                replaceServiceBitmask(leaf, slot, place.getServiceBitmask(), place.getHighServiceWords());
                 System.out.println("Service '" + serviceType + "' added to the place at coordinates (" + x + ", " + y + ")");
             }
         } else if (action.equalsIgnoreCase("remove")) {
@@ -190,6 +1551,7 @@ public class QuadTree {
                 System.out.println("Place does not have service '" + serviceType + "'");
             } else {
                 place.toggleService(serviceIndex, false);
+                replaceServiceBitmask(leaf, slot, place.getServiceBitmask(), place.getHighServiceWords());
                 System.out.println("Service '" + serviceType + "' removed from the place at coordinates (" + x + ", " + y + ")");
             }
         } else {
@@ -198,53 +1560,549 @@ public class QuadTree {
     }
 
 
+    // Overwrite the service bitmask of the place stored at (x, y); it then offers no service from 64 on
+    // Places handed out by query/findPlace are copies, so edits made on them must be written back here
+    public boolean updateServiceBitmask(int x, int y, long serviceBitmask) {
+        return updateServiceBitmask(x, y, serviceBitmask, null);
+    }
+
+    // Overwrite the services of the place stored at (x, y), including its high service words
+    public boolean updateServiceBitmask(int x, int y, long serviceBitmask, long[] highServiceWords) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        QuadTree leaf = findLeaf(x, y);
+        int slot = leaf == null ? -1 : leaf.indexOf(x, y);
+        if (slot >= 0) {
+            replaceServiceBitmask(leaf, slot, serviceBitmask, Place.trimHighWords(highServiceWords));
+        }
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.UPDATE, start);
+        }
+        return slot >= 0;
+    }
+
+    // Helper method to change the bitmask stored in a leaf slot and update the
+    // per-service counts of every ancestor of that leaf
+    private void replaceServiceBitmask(QuadTree leaf, int slot, long serviceBitmask, long[] high) {
+        long oldBitmask = leaf.serviceBitmasks[slot];
+        long[] oldHigh = leaf.highAt(slot);
+        leaf.serviceBitmasks[slot] = serviceBitmask;
+        leaf.setHighAt(slot, high);
+        leaf.recomputeLeafSummary();
+
+        long removed = oldBitmask & ~serviceBitmask;
+        long added = serviceBitmask & ~oldBitmask;
+        for (QuadTree node = leaf.parent; node != null; node = node.parent) {
+            node.addServiceCounts(removed, -1);
+            node.addServiceCounts(added, 1);
+            node.addHighServiceCounts(oldHigh, -1);
+            node.addHighServiceCounts(high, 1);
+        }
+        leaf.touch();
+    }
+
+    // Remove the place at (x, y); returns false when there is none
     public boolean removePlace(int x, int y) {
-        // Find the place in the QuadTree
-        Place place = findPlace(x, y);
-        if (place == null) {
-            System.out.println("Place not found at coordinates (" + x + ", " + y + ")");
+        if (metrics == null) {
+            return remove(x, y);
+        }
+        long start = System.nanoTime();
+        boolean removed = remove(x, y);
+        if (removed) {
+            metrics.removed++;
+        } else {
+            metrics.removeMisses++;
+        }
+        metrics.record(QuadTreeMetrics.REMOVE, start);
+        return removed;
+    }
+
+    // Move the place at (oldX, oldY) to (newX, newY), keeping its services
+    // If the new position is still inside the same leaf only the coordinates are rewritten;
+    // otherwise the search climbs from the leaf to the lowest ancestor covering the new position
+    // and re-inserts below it, so nodes above that ancestor are never touched
+    public boolean movePlace(int oldX, int oldY, int newX, int newY) {
+        if (metrics == null) {
+            return relocate(oldX, oldY, newX, newY);
+        }
+        long start = System.nanoTime();
+        boolean moved = relocate(oldX, oldY, newX, newY);
+        metrics.record(QuadTreeMetrics.MOVE, start);
+        return moved;
+    }
+
+    private boolean relocate(int oldX, int oldY, int newX, int newY) {
+        // Apply insert's rule for the exclusive right and bottom edge of the map
+        if (newX == boundary.getX() + boundary.getW()) newX--;
+        if (newY == boundary.getY() + boundary.getH()) newY--;
+        if (!boundary.contains(newX, newY)) {
+            return false;
+        }
+        QuadTree leaf = findLeaf(oldX, oldY);
+        int slot = leaf == null ? -1 : leaf.indexOf(oldX, oldY);
+        if (slot < 0) {
             return false;
         }
 
-        // Remove the place from the QuadTree
-        if (remove(place)) {
-            System.out.println("Place removed successfully at coordinates (" + x + ", " + y + ")");
+        if (leaf.boundary.contains(newX, newY)) {
+            leaf.xs[slot] = newX;
+            leaf.ys[slot] = newY;
+            leaf.touch();
+            if (pointIndex != null) {
+                if (leaf.indexOf(oldX, oldY) < 0) {
+                    pointIndex.remove(oldX, oldY);
+                }
+                pointIndex.put(newX, newY, leaf);
+            }
             return true;
-        } else {
-            System.out.println("Failed to remove place at coordinates (" + x + ", " + y + ")");
         }
-        return false;
+
+        QuadTree ancestor = leaf.parent;
+        while (ancestor != null && !ancestor.boundary.contains(newX, newY)) {
+            ancestor = ancestor.parent;
+        }
+        if (ancestor == null) {
+            return false;
+        }
+
+        // The place stays below the common ancestor, so only the nodes in between lose it
+        long serviceBitmask = leaf.serviceBitmasks[slot];
+        long[] high = leaf.highAt(slot);
+        leaf.removeAt(slot);
+        leaf.touch();
+        for (QuadTree node = leaf.parent; node != ancestor; node = node.parent) {
+            node.size--;
+            node.addServiceCounts(serviceBitmask, -1);
+            node.addHighServiceCounts(high, -1);
+        }
+        QuadTree quadrant = ancestor.getQuadrant(newX, newY);
+        if (quadrant == null || !quadrant.insert(newX, newY, serviceBitmask, high)) {
+            // The place could not be stored again, it has left the tree
+            for (QuadTree node = ancestor; node != null; node = node.parent) {
+                node.size--;
+                node.addServiceCounts(serviceBitmask, -1);
+                node.addHighServiceCounts(high, -1);
+            }
+            return false;
+        }
+        if (!lazyRemoval) {
+            mergeUpwards(leaf);
+        }
+        return true;
     }
 
     // Helper method to find a place in the QuadTree based on coordinates
     public Place findPlace(int x, int y) {
-        ArrayList<Place> found = new ArrayList<>();
-        query(new Rectangle(x, y, 1, 1), found, null); // Search a small area around the point
-        for (int i = 0; i < found.size(); i++) {
-            if (found.get(i).getX() == x && found.get(i).getY() == y) {
-                return found.get(i);
-            }
+        long start = metrics == null ? 0 : System.nanoTime();
+        QuadTree leaf = findLeaf(x, y);
+        int slot = leaf == null ? -1 : leaf.indexOf(x, y);
+        if (metrics != null) {
+            metrics.record(QuadTreeMetrics.FIND, start);
+        }
+        if (slot < 0) {
+            return null; // Place not found
         }
-        return null; // Place not found
+        return new Place(x, y, leaf.serviceBitmasks[slot], leaf.highAt(slot));
     }
 
     // Helper method to remove a place from the QuadTree
-    private boolean remove(Place place) {
+    private boolean remove(int x, int y) {
         // Find the QuadTree node containing the place
-        QuadTree containingNode = findContainingNode(place.getX(), place.getY(), this);
+        QuadTree containingNode = findLeaf(x, y);
         if (containingNode == null) {
             return false; // Place not found in the QuadTree
         }
 
         // Remove the place from the containing node
-        containingNode.points.remove(place);
+        int slot = containingNode.indexOf(x, y);
+        if (slot < 0) {
+            return false;
+        }
+        long serviceBitmask = containingNode.serviceBitmasks[slot];
+        long[] high = containingNode.highAt(slot);
+        if (lazyRemoval) {
+            containingNode.markRemoved(slot);
+        } else {
+            containingNode.removeAt(slot);
+        }
 
-        // Merge nodes if necessary
-        containingNode.tryMerge();
+        // Update the statistics of the ancestors of the leaf
+        for (QuadTree node = containingNode.parent; node != null; node = node.parent) {
+            node.size--;
+            node.addServiceCounts(serviceBitmask, -1);
+            node.addHighServiceCounts(high, -1);
+        }
+        containingNode.touch();
 
+        if (lazyRemoval) {
+            pendingTombstones++;
+            if (pendingTombstones >= Math.max(MIN_TOMBSTONES_BEFORE_COMPACTION, size / 4)) {
+                compact();
+            }
+        } else {
+            mergeUpwards(containingNode);
+        }
         return true;
     }
 
+    // In lazy removal mode removePlace only marks the place as a tombstone, leaving leaf repacking
+    // and merging to a compaction that runs once enough tombstones piled up (or on compact()).
+    // This suits bulk deletions; turning the mode off compacts right away
+    public void setLazyRemoval(boolean lazyRemoval) {
+        if (this.lazyRemoval && !lazyRemoval) {
+            compact();
+        }
+        this.lazyRemoval = lazyRemoval;
+    }
+
+    // Purge all tombstones and collapse every subtree that fits in a single leaf
+    public void compact() {
+        compactSubtree();
+        pendingTombstones = 0;
+    }
+
+    private void compactSubtree() {
+        if (!divided) {
+            purgeTombstones();
+        } else if (size < getCurrentCapacity()) {
+            collapse();
+        } else {
+            northeast.compactSubtree();
+            northwest.compactSubtree();
+            southeast.compactSubtree();
+            southwest.compactSubtree();
+        }
+    }
+
+    // Helper method to collapse the highest ancestor of a leaf whose subtree now fits in one leaf
+    // Sizes only grow and the depth-based capacities of divided nodes only shrink towards the
+    // root, so the climb can stop at the first ancestor that is still too big
+    private void mergeUpwards(QuadTree leaf) {
+        QuadTree target = null;
+        for (QuadTree node = leaf.parent; node != null && node.size < node.getCurrentCapacity(); node = node.parent) {
+            target = node;
+        }
+        if (target != null) {
+            target.collapse();
+        }
+    }
+
+    // Helper method to turn a divided node back into a leaf holding every live place of its subtree
+    private void collapse() {
+        int[] mergedXs = new int[Math.max(size, 1)];
+        int[] mergedYs = new int[mergedXs.length];
+        long[] mergedMasks = new long[mergedXs.length];
+        long[][] mergedHigh = highServiceSummary != null ? new long[mergedXs.length][] : null;
+        int merged = 0;
+        QuadTree[] children = {northeast, northwest, southeast, southwest};
+        for (QuadTree child : children) {
+            merged = child.drainInto(mergedXs, mergedYs, mergedMasks, mergedHigh, merged);
+        }
+        northeast = null;
+        northwest = null;
+        southeast = null;
+        southwest = null;
+        divided = false;
+        serviceCounts = null;
+        highServiceCounts = null;
+        xs = mergedXs;
+        ys = mergedYs;
+        serviceBitmasks = mergedMasks;
+        highServiceWords = mergedHigh;
+        count = merged;
+        tombstones = 0;
+        recomputeLeafSummary();
+        if (pointIndex != null) {
+            indexPoints(0);
+        }
+    }
+
+    // Helper method to copy the live places of a subtree into the arrays from offset on and
+    // empty the subtree, so stale index entries pointing at its leaves no longer match
+    // Returns the offset after the copied places
+    // targetHigh receives the high service words and is null when the subtree has none
+    private int drainInto(int[] targetXs, int[] targetYs, long[] targetMasks, long[][] targetHigh, int offset) {
+        generation++; // This node is being merged away
+        if (divided) {
+            offset = northeast.drainInto(targetXs, targetYs, targetMasks, targetHigh, offset);
+            offset = northwest.drainInto(targetXs, targetYs, targetMasks, targetHigh, offset);
+            offset = southeast.drainInto(targetXs, targetYs, targetMasks, targetHigh, offset);
+            offset = southwest.drainInto(targetXs, targetYs, targetMasks, targetHigh, offset);
+            return offset;
+        }
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE) {
+                targetXs[offset] = xs[i];
+                targetYs[offset] = ys[i];
+                targetMasks[offset] = serviceBitmasks[i];
+                if (targetHigh != null) {
+                    targetHigh[offset] = highAt(i);
+                }
+                offset++;
+            }
+        }
+        clearPoints();
+        return offset;
+    }
+
+    // Write the whole tree to path as a binary snapshot: a header followed by every node in
+    // preorder, each with its boundary and either a divided tag or its leaf point columns
+    // The file is written next to path and moved over it once complete, so a crash mid-save
+    // leaves the previous snapshot intact
+    public void save(Path path) throws IOException {
+        save(path, 0);
+    }
+
+    // Same as save, storing stamp in the header; load hands it back through getSnapshotStamp
+    // (Map2D stamps snapshots with the checkpoint its operation log continues from)
+    public void save(Path path, long stamp) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotWriter out = new SnapshotWriter(channel);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(pointIndex != null ? SNAPSHOT_POINT_INDEX : 0);
+            out.writeInt(depth);
+            out.writeLong(stamp);
+            writeNode(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeNode(SnapshotWriter out) throws IOException {
+        out.writeInt(boundary.getX());
+        out.writeInt(boundary.getY());
+        out.writeInt(boundary.getW());
+        out.writeInt(boundary.getH());
+        if (divided) {
+            out.writeInt(SNAPSHOT_DIVIDED);
+            northeast.writeNode(out);
+            northwest.writeNode(out);
+            southeast.writeNode(out);
+            southwest.writeNode(out);
+            return;
+        }
+        out.writeInt(count - tombstones);
+        if (tombstones == 0) {
+            out.writeInts(xs, 0, count);
+            out.writeInts(ys, 0, count);
+            out.writeLongs(serviceBitmasks, 0, count);
+        } else {
+            int[][] columns = {xs, ys};
+            for (int[] column : columns) {
+                for (int i = 0; i < count; i++) {
+                    if (xs[i] != TOMBSTONE) {
+                        out.writeInt(column[i]);
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (xs[i] != TOMBSTONE) {
+                    out.writeLong(serviceBitmasks[i]);
+                }
+            }
+        }
+        writeHighServiceWords(out);
+    }
+
+    // The leaf points offering services from 64 on: their number, then per point its position
+    // among the written points, its word count and its words
+    private void writeHighServiceWords(SnapshotWriter out) throws IOException {
+        int wide = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE && highAt(i) != null) {
+                wide++;
+            }
+        }
+        out.writeInt(wide);
+        int position = 0;
+        for (int i = 0; wide > 0 && i < count; i++) {
+            if (xs[i] == TOMBSTONE) {
+                continue;
+            }
+            long[] high = highAt(i);
+            if (high != null) {
+                out.writeInt(position);
+                out.writeInt(high.length);
+                out.writeLongs(high, 0, high.length);
+            }
+            position++;
+        }
+    }
+
+    // Rebuild a tree saved with save; the file is memory-mapped and the leaf columns are copied
+    // straight into the node arrays, only the node statistics are recomputed
+    public static QuadTree load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            SnapshotReader in = new SnapshotReader(channel);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a QuadTree snapshot: " + path);
+            }
+            int version = in.readInt();
+            if (version < SNAPSHOT_MIN_VERSION || version > SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int flags = in.readInt();
+            int depth = in.readInt();
+            long stamp = in.readLong();
+            QuadTree tree = readNode(in, depth, null, version);
+            tree.snapshotStamp = stamp;
+            if ((flags & SNAPSHOT_POINT_INDEX) != 0) {
+                tree.enablePointIndex();
+            }
+            return tree;
+        }
+    }
+
+    private static QuadTree readNode(SnapshotReader in, int depth, QuadTree parent, int version) throws IOException {
+        Rectangle boundary = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        QuadTree node = new QuadTree(boundary, depth);
+        node.parent = parent;
+        int tag = in.readInt();
+        if (tag == SNAPSHOT_DIVIDED) {
+            node.divided = true;
+            node.northeast = readNode(in, depth + 1, node, version);
+            node.northwest = readNode(in, depth + 1, node, version);
+            node.southeast = readNode(in, depth + 1, node, version);
+            node.southwest = readNode(in, depth + 1, node, version);
+            node.rebuildSummaryFromChildren();
+        } else if (tag >= 0) {
+            if (tag > 0) {
+                node.xs = new int[tag];
+                node.ys = new int[tag];
+                node.serviceBitmasks = new long[tag];
+                in.readInts(node.xs, 0, tag);
+                in.readInts(node.ys, 0, tag);
+                in.readLongs(node.serviceBitmasks, 0, tag);
+                node.count = tag;
+                node.capacity = Math.max(node.capacity, tag);
+            }
+            if (version >= 3) {
+                node.readHighServiceWords(in);
+            }
+            node.recomputeLeafSummary();
+        } else {
+            throw new IOException("Corrupt snapshot node record");
+        }
+        return node;
+    }
+
+    // Read the section written by writeHighServiceWords into this leaf
+    private void readHighServiceWords(SnapshotReader in) throws IOException {
+        int wide = in.readInt();
+        if (wide < 0 || wide > count) {
+            throw new IOException("Corrupt snapshot node record");
+        }
+        for (int i = 0; i < wide; i++) {
+            int position = in.readInt();
+            int words = in.readInt();
+            if (position < 0 || position >= count || words < 1 || words > MAX_HIGH_WORDS) {
+                throw new IOException("Corrupt snapshot node record");
+            }
+            long[] high = new long[words];
+            in.readLongs(high, 0, words);
+            setHighAt(position, high);
+        }
+    }
+
+    // The stamp of the snapshot this tree was loaded from, 0 for a tree built in memory
+    public long getSnapshotStamp() {
+        return snapshotStamp;
+    }
+
+    // Start recording latencies and query work for this tree; returns the metrics object,
+    // which keeps accumulating until disableMetrics
+    public QuadTreeMetrics enableMetrics() {
+        if (metrics == null) {
+            setMetrics(new QuadTreeMetrics());
+        }
+        return metrics;
+    }
+
+    public void disableMetrics() {
+        setMetrics(null);
+    }
+
+    public QuadTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void setMetrics(QuadTreeMetrics shared) {
+        metrics = shared;
+        if (divided) {
+            northeast.setMetrics(shared);
+            northwest.setMetrics(shared);
+            southeast.setMetrics(shared);
+            southwest.setMetrics(shared);
+        }
+    }
+
+    // Walk the tree and summarise its shape: leaves and places per depth and leaf fill
+    public TreeShape getTreeShape() {
+        TreeShape shape = new TreeShape();
+        addToShape(shape);
+        return shape;
+    }
+
+    private void addToShape(TreeShape shape) {
+        shape.nodes++;
+        if (divided) {
+            northeast.addToShape(shape);
+            northwest.addToShape(shape);
+            southeast.addToShape(shape);
+            southwest.addToShape(shape);
+        } else {
+            shape.addLeaf(depth, count - tombstones, getCurrentCapacity());
+        }
+    }
+
+    // Build the coordinate index so findPlace, edits and removals locate a place's leaf in O(1)
+    // instead of descending the tree; it is kept in sync by every later insert and removal
+    public void enablePointIndex() {
+        if (pointIndex == null) {
+            setPointIndex(new PointIndex(size));
+        }
+    }
+
+    public boolean hasPointIndex() {
+        return pointIndex != null;
+    }
+
+    private void setPointIndex(PointIndex index) {
+        pointIndex = index;
+        if (divided) {
+            northeast.setPointIndex(index);
+            northwest.setPointIndex(index);
+            southeast.setPointIndex(index);
+            southwest.setPointIndex(index);
+        } else {
+            indexPoints(0);
+        }
+    }
+
+    // Helper method to point the index at this leaf for the points from slot from onwards
+    private void indexPoints(int from) {
+        for (int i = from; i < count; i++) {
+            if (xs[i] != TOMBSTONE) {
+                pointIndex.put(xs[i], ys[i], this);
+            }
+        }
+    }
+
+    // Helper method to find the leaf holding (x, y): the point index answers in O(1) when enabled,
+    // otherwise (or when its entry is stale) the tree is descended from this node
+    private QuadTree findLeaf(int x, int y) {
+        if (pointIndex != null) {
+            QuadTree leaf = pointIndex.get(x, y);
+            if (leaf != null && !leaf.divided && leaf.indexOf(x, y) >= 0) {
+                return leaf;
+            }
+        }
+        return findContainingNode(x, y, this);
+    }
+
     // Helper method to find the QuadTree node containing a specific point
     private QuadTree findContainingNode(int x, int y, QuadTree node) {
         if (node.boundary.contains(x, y)) {
@@ -268,25 +2126,79 @@ public class QuadTree {
         return null; // Point not found in any node
     }
 
-    // Helper method to try merging child nodes into the parent node
-    private void tryMerge() {
-        if (!divided) {
-            return; // No child nodes to merge
+    // Helper method to find the slot of a point within this leaf, or -1 if absent
+    private int indexOf(int x, int y) {
+        for (int i = 0; i < count; i++) {
+            if (xs[i] == x && ys[i] == y) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Helper method to remove the point at a slot; order inside a leaf does not matter,
+    // so the last point is moved into the gap instead of shifting everything after it
+    private boolean removeAt(int slot) {
+        if (slot < 0 || slot >= count) {
+            return false;
+        }
+        int x = xs[slot];
+        int y = ys[slot];
+        int last = count - 1;
+        xs[slot] = xs[last];
+        ys[slot] = ys[last];
+        serviceBitmasks[slot] = serviceBitmasks[last];
+        if (highServiceWords != null) {
+            highServiceWords[slot] = highServiceWords[last];
+            highServiceWords[last] = null;
         }
-        // Check if all child nodes are empty
-        if (northeast.isEmpty() && northwest.isEmpty() && southeast.isEmpty() && southwest.isEmpty()) {
-            // Merge child nodes into the parent node
-            northeast = null;
-            northwest = null;
-            southeast = null;
-            southwest = null;
-            divided = false;
+        count = last;
+        recomputeLeafSummary();
+        // Drop the index entry unless another place shares the coordinate
+        if (pointIndex != null && indexOf(x, y) < 0) {
+            pointIndex.remove(x, y);
+        }
+        return true;
+    }
+
+    // Helper method to turn the point at a slot into a tombstone for lazy removal
+    private void markRemoved(int slot) {
+        int x = xs[slot];
+        int y = ys[slot];
+        xs[slot] = TOMBSTONE;
+        ys[slot] = TOMBSTONE;
+        serviceBitmasks[slot] = 0;
+        setHighAt(slot, null);
+        tombstones++;
+        recomputeLeafSummary();
+        if (pointIndex != null && indexOf(x, y) < 0) {
+            pointIndex.remove(x, y);
         }
     }
 
-    // Helper method to check if a node's point list is empty
-    private boolean isEmpty() {
-        return points.isEmpty();
+    // Helper method to squeeze the tombstones out of a leaf, keeping the live points in order
+    private void purgeTombstones() {
+        if (tombstones == 0) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] != TOMBSTONE) {
+                xs[live] = xs[i];
+                ys[live] = ys[i];
+                serviceBitmasks[live] = serviceBitmasks[i];
+                if (highServiceWords != null) {
+                    highServiceWords[live] = highServiceWords[i];
+                }
+                live++;
+            }
+        }
+        for (int i = live; highServiceWords != null && i < count; i++) {
+            highServiceWords[i] = null;
+        }
+        count = live;
+        tombstones = 0;
+        recomputeLeafSummary();
     }
 
 
@@ -295,7 +2207,7 @@ public class QuadTree {
         Rectangle boundary = new Rectangle(0, 0, 10_000_000, 10_000_000);
         QuadTree tree = new QuadTree(boundary, 0);
         ArrayList<Place> batch = new ArrayList<>();
-        int batchSize = 100_000; // Batch size for batch insertion
+        int batchSize = 1_000_000; // Batch size for batch insertion, large enough to spread over all cores
         Random random = new Random();
         int numberOfPoints = 100_000_000; // Total number of points to insert
     
@@ -331,7 +2243,7 @@ public class QuadTree {
                     break;
             }
         
-            int serviceBitmask = generateServiceBitmask(random, ServiceRegistry.getServiceTypes().length);
+            long serviceBitmask = generateServiceBitmask(random, ServiceRegistry.getServiceTypeCount());
         
             // Create a new place and add to batch
             Place newPlace = new Place(x, y, serviceBitmask);
@@ -339,14 +2251,14 @@ public class QuadTree {
         
             // Perform batch insertion when batch size is reached
             if (batch.size() == batchSize) {
-                tree.insertBatch(batch);
+                tree.insertBatchParallel(batch);
                 batch.clear();  // Clear the batch after insertion to free up memory
             }
         }
         
         // Insert any remaining points in the batch
         if (!batch.isEmpty()) {
-            tree.insertBatch(batch);
+            tree.insertBatchParallel(batch);
             batch.clear();
         }
         
@@ -384,10 +2296,10 @@ public class QuadTree {
         String serviceType = "Restaurant"; // or any other service type
         tree.editPlaceService(testX, testY, action, serviceType);
 
-        System.out.println("The chosen place after service edit:\n" + found.get(35));
+        System.out.println("The chosen place after service edit:\n" + tree.findPlace(testX, testY));
         System.out.println("Removing the chosen place...");
 
-        tree.removePlace(testX, testY);
+        System.out.println(tree.removePlace(testX, testY) ? "Place removed." : "Place not found.");
 
         System.out.println("Query the same area again to check if the place have been remove or not: ");
 
@@ -397,11 +2309,11 @@ public class QuadTree {
         System.out.printf("Found %d places within the search area.%n", foundTest.size());
     }
     
-    public static int generateServiceBitmask(Random random, int serviceTypeCount) {
-        int serviceBitmask = 0;
+    public static long generateServiceBitmask(Random random, int serviceTypeCount) {
+        long serviceBitmask = 0;
         int countServices = random.nextInt(3) + 1;
         for (int j = 0; j < countServices; j++) {
-            serviceBitmask |= 1 << random.nextInt(serviceTypeCount);
+            serviceBitmask |= 1L << random.nextInt(Math.min(serviceTypeCount, Long.SIZE));
         }
         return serviceBitmask;
     }
@@ -0,0 +1,117 @@
+package quadTree;
+
+// Optional instrumentation of a QuadTree, enabled with QuadTree.enableMetrics.
+// Holds a latency histogram per operation type, query work counters (nodes visited, leaves
+// scanned, points tested and matched) and counters for events the tree used to print.
+// While disabled the tree only pays a null check per operation and visited node.
+// Like the tree itself it is meant to be used from one thread; queryParallel and
+// insertBatchParallel record their latency, matched places and dropped places on the calling
+// thread, but not the per-node work of their fork-join tasks.
+public class QuadTreeMetrics {
+    public static final int INSERT = 0;
+    public static final int INSERT_BATCH = 1;
+    public static final int QUERY = 2;
+    public static final int COUNT = 3;
+    public static final int NEAREST = 4;
+    public static final int FIND = 5;
+    public static final int UPDATE = 6;
+    public static final int REMOVE = 7;
+    public static final int MOVE = 8;
+    private static final String[] OPERATION_NAMES = {
+            "insert", "insertBatch", "query", "count", "nearest", "find", "update", "remove", "move"
+    };
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+    // Query work since the last resetQueryCounters
+    long nodesVisited;
+    long leavesScanned;
+    long pointsTested;
+    long pointsMatched;
+    // Events
+    long outOfBounds;
+    long removed;
+    long removeMisses;
+
+    QuadTreeMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(int operation, long startNanos) {
+        latencies[operation].record(System.nanoTime() - startNanos);
+    }
+
+    // Account for a node entered by a query; leaves also count the places they hold as tested
+    void visit(boolean leaf, int places) {
+        nodesVisited++;
+        if (leaf) {
+            leavesScanned++;
+            pointsTested += places;
+        }
+    }
+
+    public LatencyHistogram getLatency(int operation) {
+        return latencies[operation];
+    }
+
+    public static String getOperationName(int operation) {
+        return OPERATION_NAMES[operation];
+    }
+
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    public long getLeavesScanned() {
+        return leavesScanned;
+    }
+
+    public long getPointsTested() {
+        return pointsTested;
+    }
+
+    public long getPointsMatched() {
+        return pointsMatched;
+    }
+
+    // Places rejected by insert or insertBatch because they lie outside the tree
+    public long getOutOfBounds() {
+        return outOfBounds;
+    }
+
+    public long getRemoved() {
+        return removed;
+    }
+
+    // removePlace calls that found no place at the given coordinates
+    public long getRemoveMisses() {
+        return removeMisses;
+    }
+
+    // Start counting the work of the next query (or group of queries) from zero
+    public void resetQueryCounters() {
+        nodesVisited = 0;
+        leavesScanned = 0;
+        pointsTested = 0;
+        pointsMatched = 0;
+    }
+
+    public String queryCounters() {
+        return "nodes visited=" + nodesVisited + " leaves scanned=" + leavesScanned
+                + " points tested=" + pointsTested + " matched=" + pointsMatched;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i].getCount() > 0) {
+                text.append(String.format("%-12s %s%n", OPERATION_NAMES[i], latencies[i]));
+            }
+        }
+        text.append("out of bounds=").append(outOfBounds).append(" removed=").append(removed)
+                .append(" remove misses=").append(removeMisses);
+        return text.toString();
+    }
+}
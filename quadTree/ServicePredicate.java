@@ -0,0 +1,182 @@
+package quadTree;
+
+import place.Place;
+
+import java.util.Arrays;
+
+// Compiled service filter for QuadTree queries: a place matches when it offers every required
+// service, at least one of the "any" services (when any are given) and none of the excluded
+// services, e.g. "Cafe AND Gym AND NOT Hotel" is required = Cafe | Gym, excluded = Hotel.
+// The per-place test is a few ANDs and ORs without branches, and the node statistics let whole
+// subtrees be skipped or taken without testing their places.
+// Services from 64 on are held in high words like a Place's; a predicate naming none of them
+// never looks at the places' high words, so it costs the same however many types exist.
+public final class ServicePredicate {
+    final long required;
+    final long any;
+    final long excluded;
+    // High words of the three sets (see Place), null when a set has no service from 64 on
+    final long[] highRequired;
+    final long[] highAny;
+    final long[] highExcluded;
+    // All ones when no "any" services are given, so that part of the test always passes
+    private final long anyBypass;
+    // Whether the predicate names a service from 64 on
+    final boolean wide;
+
+    public ServicePredicate(long required, long any, long excluded) {
+        this(required, any, excluded, null, null, null);
+    }
+
+    public ServicePredicate(long required, long any, long excluded,
+                            long[] highRequired, long[] highAny, long[] highExcluded) {
+        this.required = required;
+        this.any = any;
+        this.excluded = excluded;
+        this.highRequired = Place.trimHighWords(highRequired);
+        this.highAny = Place.trimHighWords(highAny);
+        this.highExcluded = Place.trimHighWords(highExcluded);
+        this.wide = this.highRequired != null || this.highAny != null || this.highExcluded != null;
+        this.anyBypass = any == 0 && this.highAny == null ? -1L : 0L;
+    }
+
+    // Places offering every one of the services
+    public static ServicePredicate allOf(long serviceBitmask) {
+        return new ServicePredicate(serviceBitmask, 0, 0);
+    }
+
+    // Places offering at least one of the services (the filter of the Long query methods)
+    public static ServicePredicate anyOf(long serviceBitmask) {
+        return new ServicePredicate(0, serviceBitmask, 0);
+    }
+
+    // The same filter, additionally rejecting places that offer any of the services
+    public ServicePredicate excluding(long serviceBitmask) {
+        return new ServicePredicate(required, any, excluded | serviceBitmask, highRequired, highAny, highExcluded);
+    }
+
+    // Places offering every one of the services, given by ServiceRegistry index
+    public static ServicePredicate allOfServices(int... serviceIndexes) {
+        return new ServicePredicate(lowWord(serviceIndexes), 0, 0, highWords(serviceIndexes), null, null);
+    }
+
+    // Places offering at least one of the services, given by ServiceRegistry index
+    public static ServicePredicate anyOfServices(int... serviceIndexes) {
+        return new ServicePredicate(0, lowWord(serviceIndexes), 0, null, highWords(serviceIndexes), null);
+    }
+
+    // The same filter, additionally rejecting places that offer any of the services given by index
+    public ServicePredicate excludingServices(int... serviceIndexes) {
+        long[] high = highWords(serviceIndexes);
+        if (highExcluded != null) {
+            high = orWords(high, highExcluded);
+        }
+        return new ServicePredicate(required, any, excluded | lowWord(serviceIndexes), highRequired, highAny, high);
+    }
+
+    private static long lowWord(int[] serviceIndexes) {
+        long word = 0;
+        for (int service : serviceIndexes) {
+            if (service < Long.SIZE) {
+                word |= 1L << service;
+            }
+        }
+        return word;
+    }
+
+    private static long[] highWords(int[] serviceIndexes) {
+        int highest = -1;
+        for (int service : serviceIndexes) {
+            highest = Math.max(highest, service);
+        }
+        if (highest < Long.SIZE) {
+            return null;
+        }
+        long[] words = new long[highest / Long.SIZE];
+        for (int service : serviceIndexes) {
+            if (service >= Long.SIZE) {
+                words[service / Long.SIZE - 1] |= 1L << service;
+            }
+        }
+        return words;
+    }
+
+    // A new array holding the OR of both word arrays
+    static long[] orWords(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        long[] longer = a.length >= b.length ? a : b;
+        long[] shorter = longer == a ? b : a;
+        long[] result = longer.clone();
+        for (int w = 0; w < shorter.length; w++) {
+            result[w] |= shorter[w];
+        }
+        return result;
+    }
+
+    public long getRequired() {
+        return required;
+    }
+
+    public long getAny() {
+        return any;
+    }
+
+    public long getExcluded() {
+        return excluded;
+    }
+
+    public boolean matches(long placeBitmask) {
+        return matches(placeBitmask, null);
+    }
+
+    public boolean matches(long placeBitmask, long[] placeHighWords) {
+        boolean low = ((((placeBitmask & required) ^ required) | (placeBitmask & excluded)) == 0);
+        if (!wide) {
+            return low & (((placeBitmask & any) | anyBypass) != 0);
+        }
+        return low && matchesHigh(placeBitmask & any, placeHighWords, false);
+    }
+
+    // Whether a subtree whose places together offer the services in summary can hold a match
+    boolean mayMatch(long summary, long[] highSummary) {
+        boolean low = (summary & required) == required;
+        if (!wide) {
+            return low & (((summary & any) | anyBypass) != 0);
+        }
+        return low && matchesHigh(summary & any, highSummary, true);
+    }
+
+    // The test on the high words: required (and, for places, excluded) services per word, and
+    // the "any" services over all words together, anyHit holding those found in word 0
+    private boolean matchesHigh(long anyHit, long[] words, boolean summary) {
+        int length = Math.max(length(highRequired), Math.max(length(highAny), length(highExcluded)));
+        for (int w = 0; w < length; w++) {
+            long word = w < length(words) ? words[w] : 0;
+            long wanted = w < length(highRequired) ? highRequired[w] : 0;
+            if ((word & wanted) != wanted) {
+                return false;
+            }
+            if (!summary && w < length(highExcluded) && (word & highExcluded[w]) != 0) {
+                return false;
+            }
+            if (w < length(highAny)) {
+                anyHit |= word & highAny[w];
+            }
+        }
+        return (anyHit | anyBypass) != 0;
+    }
+
+    private static int length(long[] words) {
+        return words == null ? 0 : words.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ServicePredicate{required=" + Long.toBinaryString(required) + ", any=" + Long.toBinaryString(any)
+                + ", excluded=" + Long.toBinaryString(excluded)
+                + (wide ? ", high words=" + Arrays.toString(highRequired) + "/"
+                + Arrays.toString(highAny) + "/" + Arrays.toString(highExcluded) : "") + "}";
+    }
+}
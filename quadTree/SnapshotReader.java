@@ -0,0 +1,61 @@
+package quadTree;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+// Memory-mapped int input for QuadTree snapshots. A single mapping is limited to 2 GB, so the
+// file is mapped in windows that slide forward as it is consumed; leaf columns are copied out
+// of the mapping in bulk instead of being parsed point by point.
+class SnapshotReader {
+    private static final long WINDOW_BYTES = 1L << 30;
+    private final FileChannel channel;
+    private final long fileSize;
+    private long windowStart;
+    private IntBuffer ints = IntBuffer.allocate(0);
+
+    SnapshotReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+    }
+
+    int readInt() throws IOException {
+        if (!ints.hasRemaining()) {
+            nextWindow();
+        }
+        return ints.get();
+    }
+
+    void readInts(int[] values, int from, int length) throws IOException {
+        while (length > 0) {
+            if (!ints.hasRemaining()) {
+                nextWindow();
+            }
+            int chunk = Math.min(length, ints.remaining());
+            ints.get(values, from, chunk);
+            from += chunk;
+            length -= chunk;
+        }
+    }
+
+    long readLong() throws IOException {
+        long high = readInt();
+        return (high << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    void readLongs(long[] values, int from, int length) throws IOException {
+        for (int i = from; i < from + length; i++) {
+            values[i] = readLong();
+        }
+    }
+
+    // Map the next window, starting right after the last int consumed
+    private void nextWindow() throws IOException {
+        windowStart += (long) ints.position() * Integer.BYTES;
+        long length = Math.min(WINDOW_BYTES, fileSize - windowStart);
+        if (length < Integer.BYTES) {
+            throw new IOException("Snapshot is truncated");
+        }
+        ints = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length).asIntBuffer();
+    }
+}
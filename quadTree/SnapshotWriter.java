@@ -0,0 +1,60 @@
+package quadTree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+// Buffered int (and long) output for QuadTree snapshots. Ints are staged in a direct buffer and written to
+// the channel in large blocks, so whole leaf columns go out with a single bulk copy.
+class SnapshotWriter {
+    private static final int BUFFER_BYTES = 1 << 20;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final IntBuffer ints = buffer.asIntBuffer();
+
+    SnapshotWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    void writeInt(int value) throws IOException {
+        if (!ints.hasRemaining()) {
+            flush();
+        }
+        ints.put(value);
+    }
+
+    void writeInts(int[] values, int from, int length) throws IOException {
+        while (length > 0) {
+            if (!ints.hasRemaining()) {
+                flush();
+            }
+            int chunk = Math.min(length, ints.remaining());
+            ints.put(values, from, chunk);
+            from += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Longs are written as two ints, high half first
+    void writeLong(long value) throws IOException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    void writeLongs(long[] values, int from, int length) throws IOException {
+        for (int i = from; i < from + length; i++) {
+            writeLong(values[i]);
+        }
+    }
+
+    void flush() throws IOException {
+        buffer.limit(ints.position() * Integer.BYTES);
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        ints.clear();
+    }
+}
@@ -0,0 +1,85 @@
+package quadTree;
+
+// Snapshot of a QuadTree's structure: how leaves and places are spread over the depths and
+// how full the leaves are relative to their capacity
+public class TreeShape {
+    // Leaf fill is bucketed in tenths of the leaf capacity; the last bucket holds overfull leaves
+    public static final int FILL_BUCKETS = 11;
+    int nodes;
+    int leaves;
+    int emptyLeaves;
+    int maxDepth;
+    int[] leavesByDepth = new int[8];
+    long[] placesByDepth = new long[8];
+    final int[] leafFill = new int[FILL_BUCKETS];
+
+    void addLeaf(int depth, int places, int capacity) {
+        leaves++;
+        if (places == 0) {
+            emptyLeaves++;
+        }
+        if (depth >= leavesByDepth.length) {
+            int[] grownLeaves = new int[Math.max(depth + 1, leavesByDepth.length * 2)];
+            long[] grownPlaces = new long[grownLeaves.length];
+            System.arraycopy(leavesByDepth, 0, grownLeaves, 0, leavesByDepth.length);
+            System.arraycopy(placesByDepth, 0, grownPlaces, 0, placesByDepth.length);
+            leavesByDepth = grownLeaves;
+            placesByDepth = grownPlaces;
+        }
+        leavesByDepth[depth]++;
+        placesByDepth[depth] += places;
+        maxDepth = Math.max(maxDepth, depth);
+        leafFill[places > capacity ? FILL_BUCKETS - 1 : Math.min(FILL_BUCKETS - 2, places * (FILL_BUCKETS - 1) / capacity)]++;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getLeaves() {
+        return leaves;
+    }
+
+    public int getEmptyLeaves() {
+        return emptyLeaves;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    // Number of leaves at the given depth
+    public int getLeaves(int depth) {
+        return depth < leavesByDepth.length ? leavesByDepth[depth] : 0;
+    }
+
+    // Number of places stored in leaves at the given depth
+    public long getPlaces(int depth) {
+        return depth < placesByDepth.length ? placesByDepth[depth] : 0;
+    }
+
+    // Number of leaves filled to bucket tenths of their capacity (bucket 9 includes full leaves,
+    // bucket 10 holds leaves over capacity)
+    public int getLeafFill(int bucket) {
+        return leafFill[bucket];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("nodes=").append(nodes).append(" leaves=").append(leaves)
+                .append(" empty=").append(emptyLeaves).append(" maxDepth=").append(maxDepth).append('\n');
+        text.append("depth  leaves  places\n");
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            if (leavesByDepth[depth] > 0) {
+                text.append(String.format("%5d %7d %7d%n", depth, leavesByDepth[depth], placesByDepth[depth]));
+            }
+        }
+        text.append("fill   leaves\n");
+        for (int bucket = 0; bucket < FILL_BUCKETS; bucket++) {
+            String label = bucket == FILL_BUCKETS - 1 ? ">100%" : (bucket * 10) + "%";
+            text.append(String.format("%5s %7d%n", label, leafFill[bucket]));
+        }
+        return text.toString();
+    }
+}
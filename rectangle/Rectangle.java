@@ -1,6 +1,8 @@
 package rectangle;
 
-public class Rectangle {
+import shape.Shape;
+
+public class Rectangle implements Shape {
     private int x, y, w, h;
 
     public Rectangle(int x, int y, int w, int h) {
@@ -48,11 +50,34 @@ public class Rectangle {
     }
     
 
+    public boolean containsRectangle(Rectangle other) {
+        return other.getW() > 0 && other.getH() > 0 &&
+                other.getLeft() >= this.getLeft() && other.getRight() <= this.getRight() &&
+                other.getTop() >= this.getTop() && other.getBottom() <= this.getBottom();
+    }
+
     public boolean intersects(Rectangle other) {
         return this.getLeft() < other.getRight() && this.getRight() > other.getLeft() &&
                 this.getTop() < other.getBottom() && this.getBottom() > other.getTop();
     }
 
+    // Squared distance from a point to the closest integer point covered by this rectangle (0 if inside)
+    public long distanceSquaredTo(int px, int py) {
+        long dx = 0;
+        if (px < getLeft()) {
+            dx = (long) getLeft() - px;
+        } else if (px >= getRight()) {
+            dx = (long) px - (getRight() - 1);
+        }
+        long dy = 0;
+        if (py < getTop()) {
+            dy = (long) getTop() - py;
+        } else if (py >= getBottom()) {
+            dy = (long) py - (getBottom() - 1);
+        }
+        return dx * dx + dy * dy;
+    }
+
     @Override
     public String toString() {
         return String.format("Rectangle[x=%d, y=%d, w=%d, h=%d, left=%d, right=%d, top=%d, bottom=%d]",
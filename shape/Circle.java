@@ -0,0 +1,59 @@
+package shape;
+
+import rectangle.Rectangle;
+
+public class Circle implements Shape {
+    private int centerX, centerY, radius;
+    private long radiusSquared;
+
+    public Circle(int centerX, int centerY, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Illegal radius: " + radius);
+        }
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.radius = radius;
+        this.radiusSquared = (long) radius * radius;
+    }
+
+    public int getCenterX() {
+        return centerX;
+    }
+
+    public int getCenterY() {
+        return centerY;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    @Override
+    public boolean contains(int px, int py) {
+        long dx = (long) px - centerX;
+        long dy = (long) py - centerY;
+        return dx * dx + dy * dy <= radiusSquared;
+    }
+
+    @Override
+    public boolean intersects(Rectangle area) {
+        return area.getW() > 0 && area.getH() > 0 && area.distanceSquaredTo(centerX, centerY) <= radiusSquared;
+    }
+
+    // The circle is convex, so it holds the whole area once it holds the four corner points
+    @Override
+    public boolean containsRectangle(Rectangle area) {
+        if (area.getW() <= 0 || area.getH() <= 0) {
+            return false;
+        }
+        int right = area.getRight() - 1;
+        int bottom = area.getBottom() - 1;
+        return contains(area.getLeft(), area.getTop()) && contains(right, area.getTop())
+                && contains(area.getLeft(), bottom) && contains(right, bottom);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Circle[x=%d, y=%d, r=%d]", centerX, centerY, radius);
+    }
+}
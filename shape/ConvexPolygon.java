@@ -0,0 +1,99 @@
+package shape;
+
+import rectangle.Rectangle;
+
+public class ConvexPolygon implements Shape {
+    private int[] xs, ys;
+    private int minX, minY, maxX, maxY;
+    private int orientation; // 1 for counter-clockwise vertex order, -1 for clockwise
+
+    // Vertices may be given in either clockwise or counter-clockwise order
+    public ConvexPolygon(int[] xs, int[] ys) {
+        if (xs.length != ys.length || xs.length < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices with matching coordinates");
+        }
+        this.xs = xs.clone();
+        this.ys = ys.clone();
+        minX = maxX = xs[0];
+        minY = maxY = ys[0];
+        long doubleArea = 0;
+        for (int i = 0; i < xs.length; i++) {
+            int j = (i + 1) % xs.length;
+            doubleArea += (long) xs[i] * ys[j] - (long) xs[j] * ys[i];
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        if (doubleArea == 0) {
+            throw new IllegalArgumentException("Polygon has no area");
+        }
+        orientation = doubleArea > 0 ? 1 : -1;
+    }
+
+    // Signed side of the point relative to edge i: >= 0 inside or on the edge, < 0 outside
+    private long side(int edge, long px, long py) {
+        int next = (edge + 1) % xs.length;
+        long cross = ((long) xs[next] - xs[edge]) * (py - ys[edge]) - ((long) ys[next] - ys[edge]) * (px - xs[edge]);
+        return cross * orientation;
+    }
+
+    @Override
+    public boolean contains(int px, int py) {
+        if (px < minX || px > maxX || py < minY || py > maxY) {
+            return false;
+        }
+        for (int i = 0; i < xs.length; i++) {
+            if (side(i, px, py) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Separating axis test: the bounding boxes must overlap and no polygon edge
+    // may have every corner of the area on its outer side
+    @Override
+    public boolean intersects(Rectangle area) {
+        if (area.getW() <= 0 || area.getH() <= 0) {
+            return false;
+        }
+        int right = area.getRight() - 1;
+        int bottom = area.getBottom() - 1;
+        if (right < minX || area.getLeft() > maxX || bottom < minY || area.getTop() > maxY) {
+            return false;
+        }
+        for (int i = 0; i < xs.length; i++) {
+            if (side(i, area.getLeft(), area.getTop()) < 0 && side(i, right, area.getTop()) < 0
+                    && side(i, area.getLeft(), bottom) < 0 && side(i, right, bottom) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The polygon is convex, so it holds the whole area once it holds the four corner points
+    @Override
+    public boolean containsRectangle(Rectangle area) {
+        if (area.getW() <= 0 || area.getH() <= 0) {
+            return false;
+        }
+        int right = area.getRight() - 1;
+        int bottom = area.getBottom() - 1;
+        return contains(area.getLeft(), area.getTop()) && contains(right, area.getTop())
+                && contains(area.getLeft(), bottom) && contains(right, bottom);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ConvexPolygon[");
+        for (int i = 0; i < xs.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('(').append(xs[i]).append(", ").append(ys[i]).append(')');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+}
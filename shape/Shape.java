@@ -0,0 +1,15 @@
+package shape;
+
+import rectangle.Rectangle;
+
+// A query area over integer coordinates
+public interface Shape {
+    // Whether the point lies inside the shape
+    boolean contains(int px, int py);
+
+    // Whether the shape may overlap the area; false only when they are certainly disjoint
+    boolean intersects(Rectangle area);
+
+    // Whether every point of the area lies inside the shape
+    boolean containsRectangle(Rectangle area);
+}